@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.Keys;
+import com.gitblit.manager.IRepositoryManager;
+import com.gitblit.servlet.GitblitContext;
+import com.syntevo.bugtraq.BugtraqConfig;
+import com.syntevo.bugtraq.BugtraqFormatter;
+
+/**
+ * Links issue references in ticket text exactly like Gitblit's
+ * BugtraqProcessor, with the regex settings and the bugtraq configuration of
+ * each repository compiled once and cached.  Like the processor, the regex
+ * substitutions are applied first and the bugtraq links second.
+ *
+ * A cached repository is compiled again when its config file changes, when
+ * it receives a push, which may change its .gitbugtraq file, or when it has
+ * been cached for {@link #MAX_AGE} milliseconds.  Only compiling opens the
+ * repository; a cached repository costs a stat of its config file.
+ *
+ * @author James Moger
+ *
+ */
+public class BugtraqCache {
+
+	/**
+	 * Milliseconds after which a repository is compiled again, to pick up
+	 * changed regex settings and pushes received by other nodes.
+	 */
+	static final long MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+
+	static final Logger log = LoggerFactory.getLogger(BugtraqCache.class);
+
+	final IStoredSettings settings;
+
+	final Map<String, Compiled> repositories;
+
+	/**
+	 * @param settings
+	 * @param size the maximum number of cached repositories
+	 */
+	public BugtraqCache(IStoredSettings settings, final int size) {
+		this.settings = settings;
+		this.repositories = new LinkedHashMap<String, Compiled>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Compiled> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Links the issue references in the text.
+	 *
+	 * @param repository
+	 * @param text
+	 * @return the processed text
+	 */
+	public String process(String repository, String text) {
+		return get(repository).process(text);
+	}
+
+	/**
+	 * Returns the version of the compiled configuration of a repository.
+	 * The version is derived from the config file, the .gitbugtraq file at
+	 * HEAD and the regex settings, so it only changes when one of them does.
+	 *
+	 * @param repository
+	 * @return the version
+	 */
+	public String getVersion(String repository) {
+		return get(repository).version;
+	}
+
+	/**
+	 * Forgets the compiled configuration of a repository.
+	 *
+	 * @param repository
+	 */
+	public void invalidate(String repository) {
+		synchronized (repositories) {
+			repositories.remove(repository);
+		}
+	}
+
+	public void clear() {
+		synchronized (repositories) {
+			repositories.clear();
+		}
+	}
+
+	private Compiled get(String repository) {
+		IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
+		File config = new File(new File(repositoryManager.getRepositoriesFolder(), repository), "config");
+		long now = System.currentTimeMillis();
+		synchronized (repositories) {
+			Compiled compiled = repositories.get(repository);
+			if (compiled != null && compiled.isCurrent(config, now)) {
+				return compiled;
+			}
+		}
+
+		// compile outside of the lock, a concurrent compile is harmless
+		Compiled compiled = compile(repositoryManager, repository, config, now);
+		synchronized (repositories) {
+			repositories.put(repository, compiled);
+		}
+		return compiled;
+	}
+
+	private Compiled compile(IRepositoryManager repositoryManager, String repository, File config, long now) {
+		long stamp = config.lastModified();
+		BugtraqFormatter formatter = null;
+		String gitbugtraq = null;
+		Repository db = repositoryManager.getRepository(repository);
+		if (db != null) {
+			try {
+				BugtraqConfig bugtraq = BugtraqConfig.read(db);
+				if (bugtraq != null) {
+					formatter = new BugtraqFormatter(bugtraq);
+				}
+				gitbugtraq = getGitBugtraq(db);
+			} catch (IOException | ConfigInvalidException e) {
+				log.warn("Bugtraq config for " + repository + " is invalid!", e);
+			} finally {
+				db.close();
+			}
+		}
+		Map<String, String> definitions = getRegex(repository);
+		String version = stamp + ":" + gitbugtraq + ":" + new TreeMap<String, String>(definitions);
+		return new Compiled(formatter, compileRegex(repository, definitions), stamp, now + MAX_AGE, version);
+	}
+
+	/**
+	 * Returns the object id of the .gitbugtraq file at HEAD or null.
+	 */
+	private String getGitBugtraq(Repository db) throws IOException {
+		ObjectId tree = db.resolve(Constants.HEAD + "^{tree}");
+		if (tree == null) {
+			return null;
+		}
+		try (TreeWalk tw = TreeWalk.forPath(db, ".gitbugtraq", tree)) {
+			return tw == null ? null : tw.getObjectId(0).getName();
+		}
+	}
+
+	/**
+	 * Returns the global and repository regex settings by name, the
+	 * repository settings replacing global settings of the same name.  The
+	 * map is built like BugtraqProcessor builds it, so that its iteration
+	 * order, which is the order of the substitutions, is the same.
+	 */
+	private Map<String, String> getRegex(String repository) {
+		Map<String, String> definitions = new HashMap<String, String>();
+		if (settings.getBoolean(Keys.regex.global, false)) {
+			for (String key : settings.getAllKeys(Keys.regex.global)) {
+				if (!key.equals(Keys.regex.global)) {
+					definitions.put(key.substring(key.lastIndexOf('.') + 1), settings.getString(key, ""));
+				}
+			}
+		}
+		for (String key : settings.getAllKeys(Keys.regex._ROOT + "." + repository.toLowerCase())) {
+			definitions.put(key.substring(key.lastIndexOf('.') + 1), settings.getString(key, ""));
+		}
+		return definitions;
+	}
+
+	/**
+	 * Compiles the regex settings.  Badly formatted settings are dropped
+	 * like BugtraqProcessor drops them, and so are invalid patterns, which
+	 * would make the processor fail.
+	 */
+	private List<Replacement> compileRegex(String repository, Map<String, String> definitions) {
+		List<Replacement> replacements = new ArrayList<Replacement>();
+		for (Map.Entry<String, String> entry : definitions.entrySet()) {
+			String [] chunks = entry.getValue().trim().split("!!!");
+			if (chunks.length != 2) {
+				log.warn("Dropping bad regex pattern '{}' for repository {}", entry.getKey(), repository);
+				continue;
+			}
+			try {
+				replacements.add(new Replacement(Pattern.compile(chunks[0]), chunks[1]));
+			} catch (PatternSyntaxException e) {
+				log.warn("Dropping bad regex pattern '" + entry.getKey() + "' for repository " + repository, e);
+			}
+		}
+		return replacements;
+	}
+
+	private static class Replacement {
+
+		final Pattern pattern;
+
+		final String replacement;
+
+		Replacement(Pattern pattern, String replacement) {
+			this.pattern = pattern;
+			this.replacement = replacement;
+		}
+	}
+
+	/**
+	 * The compiled configuration of a repository.
+	 */
+	private static class Compiled {
+
+		final BugtraqFormatter formatter;
+
+		final List<Replacement> replacements;
+
+		final long configStamp;
+
+		final long expires;
+
+		final String version;
+
+		Compiled(BugtraqFormatter formatter, List<Replacement> replacements, long configStamp, long expires,
+				String version) {
+			this.formatter = formatter;
+			this.replacements = replacements;
+			this.configStamp = configStamp;
+			this.expires = expires;
+			this.version = version;
+		}
+
+		boolean isCurrent(File config, long now) {
+			return now < expires && config.lastModified() == configStamp;
+		}
+
+		String process(String text) {
+			String html = text;
+			for (Replacement replacement : replacements) {
+				html = replacement.pattern.matcher(html).replaceAll(replacement.replacement);
+			}
+			if (formatter != null) {
+				final StringBuilder sb = new StringBuilder(html.length());
+				formatter.formatLogMessage(html, new BugtraqFormatter.OutputHandler() {
+					@Override
+					public void appendText(String text) {
+						sb.append(text);
+					}
+
+					@Override
+					public void appendLink(String name, String target) {
+						sb.append("<a class=\"bugtraq\" href=\"").append(target).append("\" target=\"_blank\">")
+							.append(name).append("</a>");
+					}
+				});
+				html = sb.toString();
+			}
+			return html;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.ClientProtocolException;
+
+/**
+ * Circuit breaker for one FlowDock endpoint.
+ *
+ * The breaker records the outcome of the most recent requests.  When the
+ * failure rate of that window reaches the threshold the circuit opens and
+ * requests are refused without any I/O.  After the open interval a single
+ * probe request is let through; the circuit closes if the probe succeeds and
+ * opens again if it fails.
+ *
+ * @author James Moger
+ *
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		closed, open, halfOpen
+	}
+
+	/**
+	 * Thrown when a request is refused because the circuit is open.
+	 */
+	public static class OpenException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		final long wait;
+
+		public OpenException(String endpoint, long wait) {
+			super("FlowDock circuit for " + endpoint + " is open");
+			this.wait = wait;
+		}
+
+		/**
+		 * Returns the number of milliseconds until the circuit may be probed.
+		 *
+		 * @return the wait in milliseconds
+		 */
+		public long getWait() {
+			return wait;
+		}
+	}
+
+	/**
+	 * The wait suggested to requests which are refused while a probe is in
+	 * flight.
+	 */
+	static final long PROBE_WAIT = 1000;
+
+	final String endpoint;
+
+	final int failureRate;
+
+	final int minimumCalls;
+
+	final long openTime;
+
+	/**
+	 * Ring buffer of the most recent outcomes, true for a failure.
+	 */
+	final boolean [] window;
+
+	private int next;
+
+	private int calls;
+
+	private int failures;
+
+	private State state;
+
+	private long openedAt;
+
+	/**
+	 * @param endpoint
+	 * @param failureRate the failure percentage which opens the circuit
+	 * @param minimumCalls the number of calls in the window before the
+	 *        failure rate is evaluated
+	 * @param windowSize the number of most recent calls considered
+	 * @param openTime milliseconds before an open circuit is probed
+	 */
+	public CircuitBreaker(String endpoint, int failureRate, int minimumCalls, int windowSize, long openTime) {
+		this.endpoint = endpoint;
+		this.failureRate = Math.max(1, Math.min(100, failureRate));
+		this.window = new boolean[Math.max(1, windowSize)];
+		this.minimumCalls = Math.max(1, Math.min(window.length, minimumCalls));
+		this.openTime = Math.max(0, openTime);
+		this.state = State.closed;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Checks if a request may be sent.  Every permitted request must be
+	 * followed by {@link #onSuccess()} or {@link #onFailure()}.
+	 *
+	 * @throws OpenException if the request is refused
+	 */
+	public synchronized void acquire() throws OpenException {
+		switch (state) {
+		case open:
+			long elapsed = now() - openedAt;
+			if (elapsed < openTime) {
+				throw new OpenException(endpoint, openTime - elapsed);
+			}
+			// this request is the probe
+			state = State.halfOpen;
+			return;
+		case halfOpen:
+			throw new OpenException(endpoint, PROBE_WAIT);
+		default:
+			return;
+		}
+	}
+
+	/**
+	 * Records a successful request.
+	 *
+	 * @return true if this closed the circuit
+	 */
+	public synchronized boolean onSuccess() {
+		if (state == State.halfOpen) {
+			reset();
+			state = State.closed;
+			return true;
+		}
+		record(false);
+		return false;
+	}
+
+	/**
+	 * Records a failed request.
+	 *
+	 * @return true if this opened the circuit
+	 */
+	public synchronized boolean onFailure() {
+		if (state == State.halfOpen) {
+			// the probe failed
+			open();
+			return false;
+		}
+		record(true);
+		if (state == State.closed && calls >= minimumCalls && failures * 100 >= failureRate * calls) {
+			open();
+			return true;
+		}
+		return false;
+	}
+
+	private void record(boolean failure) {
+		if (calls == window.length) {
+			if (window[next]) {
+				failures--;
+			}
+		} else {
+			calls++;
+		}
+		window[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % window.length;
+	}
+
+	private void open() {
+		state = State.open;
+		openedAt = now();
+		reset();
+	}
+
+	private void reset() {
+		next = 0;
+		calls = 0;
+		failures = 0;
+	}
+
+	/**
+	 * Returns true if the failure indicates that the endpoint is unhealthy.
+	 * Error responses caused by the request itself, or by rate limiting, do
+	 * not count against the endpoint.
+	 *
+	 * @param e
+	 * @return true if the failure counts against the endpoint
+	 */
+	public static boolean isFailure(IOException e) {
+		if (e instanceof FlowDockException) {
+			int status = ((FlowDockException) e).getStatus();
+			return status == 408 || status >= 500;
+		}
+		return !(e instanceof ClientProtocolException);
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	@Override
+	public String toString() {
+		return "FlowDock circuit for " + endpoint;
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the added, modified and removed paths of commits.
+ *
+ * The commits are diffed against their first parent in parallel on a
+ * fork-join pool.  Each task reads the repository through its own
+ * ObjectReader since readers are not thread-safe.  Renames are detected and
+ * reported as modifications of the new path, like Gitblit does.
+ *
+ * @author James Moger
+ *
+ */
+public class CommitDiffer {
+
+	/**
+	 * The changed paths of a commit.
+	 */
+	public static class Paths {
+
+		final List<String> added = new ArrayList<String>();
+
+		final List<String> modified = new ArrayList<String>();
+
+		final List<String> removed = new ArrayList<String>();
+
+		public List<String> getAdded() {
+			return added;
+		}
+
+		public List<String> getModified() {
+			return modified;
+		}
+
+		public List<String> getRemoved() {
+			return removed;
+		}
+	}
+
+	/**
+	 * The maximum number of commits diffed by one task.
+	 */
+	static final int TASK_SIZE = 2;
+
+	static final Logger log = LoggerFactory.getLogger(CommitDiffer.class);
+
+	final ForkJoinPool pool;
+
+	/**
+	 * @param parallelism the number of threads which diff commits, 1 diffs
+	 *        on the calling thread
+	 */
+	public CommitDiffer(int parallelism) {
+		if (parallelism > 1) {
+			pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("FlowDock differ " + thread.getPoolIndex());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, null, false);
+		} else {
+			pool = null;
+		}
+	}
+
+	/**
+	 * Diffs the commits.
+	 *
+	 * @param db
+	 * @param commits
+	 * @return the changed paths of each commit, in the order of the commits
+	 */
+	public List<Paths> diff(Repository db, List<? extends AnyObjectId> commits) {
+		Paths [] results = new Paths[commits.size()];
+		if (pool == null || commits.size() <= TASK_SIZE) {
+			// tasks may only fork inside the pool
+			diff(db, commits, results, 0, commits.size());
+		} else {
+			pool.invoke(new DiffTask(db, commits, results, 0, commits.size()));
+		}
+		return Arrays.asList(results);
+	}
+
+	public void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Diffs a commit against its first parent.
+	 *
+	 * @param db
+	 * @param reader
+	 * @param commitId
+	 * @return the changed paths
+	 * @throws IOException
+	 */
+	static Paths diff(Repository db, ObjectReader reader, AnyObjectId commitId) throws IOException {
+		List<DiffEntry> entries;
+		try (RevWalk rw = new RevWalk(reader); TreeWalk tw = new TreeWalk(reader)) {
+			RevCommit commit = rw.parseCommit(commitId);
+			tw.setRecursive(true);
+			tw.setFilter(TreeFilter.ANY_DIFF);
+			if (commit.getParentCount() == 0) {
+				tw.addTree(new EmptyTreeIterator());
+			} else {
+				tw.addTree(rw.parseCommit(commit.getParent(0)).getTree());
+			}
+			tw.addTree(commit.getTree());
+			entries = DiffEntry.scan(tw);
+		}
+
+		RenameDetector renames = new RenameDetector(db);
+		renames.addAll(entries);
+		entries = renames.compute(reader, NullProgressMonitor.INSTANCE);
+
+		Paths paths = new Paths();
+		for (DiffEntry entry : entries) {
+			switch (entry.getChangeType()) {
+			case ADD:
+			case COPY:
+				paths.added.add(entry.getNewPath());
+				break;
+			case DELETE:
+				paths.removed.add(entry.getOldPath());
+				break;
+			default:
+				paths.modified.add(entry.getNewPath());
+				break;
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Diffs a range of the commits on the calling thread.
+	 *
+	 * @param db
+	 * @param commits
+	 * @param results receives the changed paths of the commits in the range
+	 * @param from
+	 * @param to
+	 */
+	static void diff(Repository db, List<? extends AnyObjectId> commits, Paths [] results, int from, int to) {
+		try (ObjectReader reader = db.newObjectReader()) {
+			for (int i = from; i < to; i++) {
+				AnyObjectId commit = commits.get(i);
+				try {
+					results[i] = diff(db, reader, commit);
+				} catch (IOException e) {
+					log.error("failed to diff commit " + commit.getName(), e);
+					results[i] = new Paths();
+				}
+			}
+		}
+	}
+
+	private static class DiffTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		final Repository db;
+
+		final List<? extends AnyObjectId> commits;
+
+		final Paths [] results;
+
+		final int from;
+
+		final int to;
+
+		DiffTask(Repository db, List<? extends AnyObjectId> commits, Paths [] results, int from, int to) {
+			this.db = db;
+			this.commits = commits;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new DiffTask(db, commits, results, from, mid),
+						new DiffTask(db, commits, results, mid, to));
+				return;
+			}
+			diff(db, commits, results, from, to);
+		}
+	}
+}
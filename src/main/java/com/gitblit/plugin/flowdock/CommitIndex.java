@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * A memory-bounded index of the commits which have been announced to a flow.
+ *
+ * The most recent commits are remembered exactly in a small LRU.  All
+ * commits are also added to a rotating pair of Bloom filters: when the
+ * current filter is full it becomes the previous filter and a new one is
+ * started, so old commits are eventually forgotten and the false positive
+ * rate stays near one percent.
+ *
+ * The Bloom filters only answer that a commit is new, without touching the
+ * LRU.  A commit is reported as announced only if the LRU confirms it, so a
+ * false positive never hides a new commit.
+ *
+ * @author James Moger
+ *
+ */
+public class CommitIndex {
+
+	/**
+	 * The number of commits remembered exactly.
+	 */
+	static final int LRU_SIZE = 1000;
+
+	/**
+	 * Bloom filter bits per commit, for a false positive rate of about 1%.
+	 */
+	static final int BITS_PER_COMMIT = 10;
+
+	static final int HASHES = 7;
+
+	final int capacity;
+
+	final int bits;
+
+	final Map<ObjectId, Boolean> recent;
+
+	private long [] current;
+
+	private long [] previous;
+
+	private int count;
+
+	/**
+	 * @param capacity the number of commits in one Bloom filter generation
+	 */
+	public CommitIndex(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.bits = Math.max(64, this.capacity * BITS_PER_COMMIT);
+		this.current = new long[(bits + 63) / 64];
+		this.recent = new LinkedHashMap<ObjectId, Boolean>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ObjectId, Boolean> eldest) {
+				return size() > LRU_SIZE;
+			}
+		};
+	}
+
+	/**
+	 * Returns true if the commit has been announced.
+	 *
+	 * @param id
+	 * @return true if the commit has been announced
+	 */
+	public synchronized boolean contains(AnyObjectId id) {
+		byte [] raw = toRaw(id);
+		if (!contains(current, raw) && (previous == null || !contains(previous, raw))) {
+			// certainly new
+			return false;
+		}
+		// the filters may be wrong, only the exact LRU is trusted
+		return recent.get(id) != null;
+	}
+
+	/**
+	 * Records an announced commit.
+	 *
+	 * @param id
+	 */
+	public synchronized void add(AnyObjectId id) {
+		if (recent.put(id.copy(), Boolean.TRUE) != null) {
+			return;
+		}
+		if (count >= capacity) {
+			// rotate, forgetting the oldest generation
+			previous = current;
+			current = new long[current.length];
+			count = 0;
+		}
+		byte [] raw = toRaw(id);
+		int h1 = hash(raw, 4);
+		int h2 = hash(raw, 8) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			current[bit >>> 6] |= 1L << bit;
+		}
+		count++;
+	}
+
+	private boolean contains(long [] filter, byte [] raw) {
+		int h1 = hash(raw, 4);
+		int h2 = hash(raw, 8) | 1;
+		for (int i = 0; i < HASHES; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+			if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte [] toRaw(AnyObjectId id) {
+		byte [] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		id.copyRawTo(raw, 0);
+		return raw;
+	}
+
+	/**
+	 * Object ids are SHA-1 hashes, so any four of their bytes are a good hash.
+	 */
+	private static int hash(byte [] raw, int offset) {
+		return (raw[offset] & 0xff) << 24 | (raw[offset + 1] & 0xff) << 16
+				| (raw[offset + 2] & 0xff) << 8 | (raw[offset + 3] & 0xff);
+	}
+}
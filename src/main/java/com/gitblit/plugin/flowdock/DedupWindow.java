@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A time-bounded window of the events which have already been posted.
+ *
+ * Each event is identified by a stable key.  An event is claimed before its
+ * payload is built: the first claim of a key within the window succeeds and
+ * every later claim fails, so an event which is replayed or reported twice is
+ * posted once.  An event which fails to post is released again, so that it
+ * is not suppressed when it is replayed.  The keys are remembered in memory
+ * and, optionally, in a file which is shared by all Gitblit nodes with access
+ * to the same data directory.  The file is a list of <em>expiry key</em>
+ * lines and is only read and written while holding an exclusive lock on it,
+ * so a claim is atomic across the nodes.
+ *
+ * @author James Moger
+ *
+ */
+public class DedupWindow {
+
+	/**
+	 * The length of a line in the shared file: a 13 digit expiry, a space, a
+	 * 40 digit key and a newline.
+	 */
+	static final int LINE_LENGTH = 13 + 1 + 40 + 1;
+
+	static final Logger log = LoggerFactory.getLogger(DedupWindow.class);
+
+	final long ttl;
+
+	final int maxSize;
+
+	final File file;
+
+	/**
+	 * Key to expiry, in claim order.  All keys have the same time to live, so
+	 * the first entry always expires first.
+	 */
+	final LinkedHashMap<String, Long> keys;
+
+	/**
+	 * @param ttl milliseconds an event is remembered
+	 * @param maxSize the maximum number of keys remembered in memory
+	 * @param file the shared file or null to remember keys in memory only
+	 */
+	public DedupWindow(long ttl, int maxSize, File file) {
+		this.ttl = ttl;
+		this.maxSize = Math.max(1, maxSize);
+		this.file = file;
+		this.keys = new LinkedHashMap<String, Long>();
+		if (file != null) {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+		}
+	}
+
+	/**
+	 * Claims an event.  The event is checked and recorded in one step, so of
+	 * several concurrent claims of an event exactly one succeeds.
+	 *
+	 * @param key the key of the event, see {@link #key(String...)}
+	 * @return true if the event has not been claimed within the window
+	 */
+	public synchronized boolean claim(String key) {
+		long now = System.currentTimeMillis();
+		prune(now);
+		if (keys.containsKey(key)) {
+			return false;
+		}
+
+		boolean claimed = true;
+		if (file != null) {
+			try {
+				claimed = updateShared(key, now, true);
+			} catch (IOException e) {
+				log.warn("Failed to claim an event in the shared FlowDock dedup file " + file, e);
+			}
+		}
+		// remember the claims of other nodes too
+		keys.put(key, now + ttl);
+		return claimed;
+	}
+
+	/**
+	 * Releases a claimed event, because it could not be posted, so that it is
+	 * posted when it is replayed.
+	 *
+	 * @param key the key of the event, see {@link #key(String...)}
+	 */
+	public synchronized void release(String key) {
+		keys.remove(key);
+		if (file != null) {
+			try {
+				updateShared(key, System.currentTimeMillis(), false);
+			} catch (IOException e) {
+				log.warn("Failed to release an event in the shared FlowDock dedup file " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the expired keys and the oldest keys beyond the maximum size.
+	 */
+	private void prune(long now) {
+		Iterator<Long> expiries = keys.values().iterator();
+		while (expiries.hasNext()) {
+			if (expiries.next() > now && keys.size() < maxSize) {
+				break;
+			}
+			expiries.remove();
+		}
+	}
+
+	/**
+	 * Claims or releases an event in the shared file.  Expired lines are
+	 * dropped when they make up most of the file.
+	 *
+	 * @param claim true to claim the event, false to release it
+	 * @return true if the event has been claimed or released
+	 */
+	private boolean updateShared(String key, long now, boolean claim) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				FileChannel channel = raf.getChannel()) {
+			// excludes the other nodes, released when the channel is closed
+			channel.lock();
+			int length = (int) Math.min(Integer.MAX_VALUE, channel.size());
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// read the whole file
+			}
+			String content = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+
+			StringBuilder live = new StringBuilder(content.length());
+			int expired = 0;
+			boolean found = false;
+			for (String line : content.split("\n")) {
+				int space = line.indexOf(' ');
+				if (space <= 0) {
+					continue;
+				}
+				long expiry;
+				try {
+					expiry = Long.parseLong(line.substring(0, space));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				if (expiry <= now) {
+					expired++;
+					continue;
+				}
+				if (line.substring(space + 1).equals(key)) {
+					found = true;
+					if (!claim) {
+						// drop the released event
+						continue;
+					}
+				}
+				live.append(line).append('\n');
+			}
+			if (!claim) {
+				if (found) {
+					channel.truncate(0);
+					channel.write(ByteBuffer.wrap(live.toString().getBytes(StandardCharsets.US_ASCII)), 0);
+					channel.force(false);
+				}
+				return found;
+			}
+			if (found) {
+				return false;
+			}
+
+			String entry = String.format("%013d %s\n", now + ttl, key);
+			if (expired * LINE_LENGTH > length / 2) {
+				live.append(entry);
+				channel.truncate(0);
+				channel.write(ByteBuffer.wrap(live.toString().getBytes(StandardCharsets.US_ASCII)), 0);
+			} else {
+				channel.write(ByteBuffer.wrap(entry.getBytes(StandardCharsets.US_ASCII)), channel.size());
+			}
+			channel.force(false);
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the stable key of an event: the SHA-1 of its parts.
+	 *
+	 * @param parts the identifying values of the event
+	 * @return a key
+	 */
+	public static String key(String... parts) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for (String part : parts) {
+				if (part != null) {
+					md.update(part.getBytes(StandardCharsets.UTF_8));
+				}
+				md.update((byte) 0);
+			}
+			byte [] digest = md.digest();
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the number of keys remembered in memory.
+	 *
+	 * @return the number of keys
+	 */
+	public synchronized int size() {
+		return keys.size();
+	}
+
+	@Override
+	public String toString() {
+		return "FlowDock dedup window of " + (ttl / 1000) + "s" + (file == null ? "" : " in " + file);
+	}
+}
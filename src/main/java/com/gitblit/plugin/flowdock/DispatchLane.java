@@ -0,0 +1,443 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, single-consumer queue of envelopes which are delivered in order
+ * per flow.
+ *
+ * Every flow is hashed to one lane.  A lane borrows a thread from the shared
+ * dispatcher pool while it has work, so lanes run in parallel with each other
+ * but never with themselves.  If an envelope has to wait for a retry or a
+ * rate limit token, it is parked together with the envelopes of its flow
+ * which follow it, and the lane moves on to the other flows.  The parked
+ * envelopes are queued again, ahead of the rest of the lane, when the
+ * deferred envelope is resumed.
+ *
+ * @author James Moger
+ *
+ */
+public class DispatchLane implements Runnable {
+
+	/**
+	 * Delivers the envelopes of a lane.
+	 */
+	public interface Handler {
+
+		/**
+		 * Attempts to deliver an envelope.
+		 *
+		 * @param envelope
+		 * @return true if the lane may move on, false if the envelope has been
+		 *         deferred and its flow must wait until it is resumed
+		 */
+		boolean process(Envelope envelope);
+
+		/**
+		 * Notified when an envelope is dropped because the lane is full.
+		 *
+		 * @param envelope
+		 */
+		void dropped(Envelope envelope);
+
+		/**
+		 * Reads a spilled envelope back from the outbox.
+		 *
+		 * @param pointer
+		 * @return the envelope
+		 * @throws IOException
+		 */
+		Envelope read(Outbox.Pointer pointer) throws IOException;
+	}
+
+	/**
+	 * The maximum number of envelopes delivered before the lane yields its
+	 * thread to the other lanes.
+	 */
+	static final int BATCH_SIZE = 32;
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final int index;
+
+	final int capacity;
+
+	final OverflowPolicy policy;
+
+	final long timeout;
+
+	final Executor executor;
+
+	final Handler handler;
+
+	final ArrayDeque<Envelope> queue;
+
+	final ArrayDeque<Outbox.Pointer> spilled;
+
+	/**
+	 * Envelopes of resumed flows, which are delivered before the queue.
+	 */
+	final ArrayDeque<Envelope> ready;
+
+	/**
+	 * The deferred envelope of a flow followed by the envelopes of the flow
+	 * which were dequeued while it waits.
+	 */
+	final Map<String, ArrayDeque<Envelope>> parked;
+
+	private int parkedCount;
+
+	/**
+	 * The number of spilled envelopes being read from the outbox.
+	 */
+	private int reading;
+
+	/**
+	 * The envelope which is being delivered.
+	 */
+	private Envelope head;
+
+	/**
+	 * The envelope being delivered, if it was resumed before it was parked.
+	 */
+	private Envelope resumed;
+
+	private boolean scheduled;
+
+	private boolean stopped;
+
+	public DispatchLane(int index, int capacity, OverflowPolicy policy, long timeout, Executor executor, Handler handler) {
+		this.index = index;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.timeout = timeout;
+		this.executor = executor;
+		this.handler = handler;
+		this.queue = new ArrayDeque<Envelope>(Math.min(capacity, 64));
+		this.spilled = new ArrayDeque<Outbox.Pointer>();
+		this.ready = new ArrayDeque<Envelope>();
+		this.parked = new HashMap<String, ArrayDeque<Envelope>>();
+	}
+
+	/**
+	 * Queues an envelope, applying the overflow policy if the lane is full.
+	 *
+	 * The outbox writer must never wait for a lane, because it stores the
+	 * envelopes of all flows.  Stored envelopes are therefore spilled instead
+	 * of blocking, whatever the policy, and only callers without an outbox
+	 * wait for room.
+	 *
+	 * @param envelope
+	 * @param wait true if the caller may wait for room, false for the outbox
+	 *        writer
+	 */
+	public void offer(Envelope envelope, boolean wait) {
+		Envelope dropped = null;
+		synchronized (this) {
+			if (stopped) {
+				log.warn("FlowDock dispatcher is stopped, not sending {}", envelope);
+				return;
+			}
+			if (hasRoom()) {
+				queue.add(envelope);
+				schedule();
+				return;
+			}
+
+			if (policy == OverflowPolicy.dropOldest) {
+				dropped = queue.isEmpty() ? ready.poll() : queue.poll();
+				queue.add(envelope);
+				schedule();
+			} else if (envelope.pointer != null && (policy == OverflowPolicy.spill || !wait)) {
+				// leave the message in the outbox until there is room,
+				// behind any message which was spilled before it
+				spilled.add(envelope.pointer);
+				return;
+			} else if (!wait) {
+				// not stored and the outbox writer must not wait
+				dropped = envelope;
+			} else {
+				// wait for the spilled messages too, they are queued first
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+				try {
+					while (!hasRoom() && !stopped) {
+						long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+						if (remaining <= 0) {
+							break;
+						}
+						wait(remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				if (hasRoom() && !stopped) {
+					queue.add(envelope);
+					schedule();
+					return;
+				}
+				dropped = envelope;
+			}
+		}
+
+		if (dropped != null) {
+			log.warn("FlowDock lane {} is full, dropped {}", index, dropped);
+			handler.dropped(dropped);
+		}
+	}
+
+	/**
+	 * Resumes the flow of an envelope after the envelope has been deferred.
+	 *
+	 * @param envelope the deferred envelope
+	 */
+	public synchronized void resume(Envelope envelope) {
+		if (head == envelope) {
+			// resumed before the lane had a chance to park it
+			resumed = envelope;
+			return;
+		}
+		String flow = getFlow(envelope);
+		ArrayDeque<Envelope> held = parked.get(flow);
+		if (held != null && held.peek() == envelope) {
+			parked.remove(flow);
+			parkedCount -= held.size();
+			ready.addAll(held);
+			schedule();
+		}
+	}
+
+	/**
+	 * Stops the lane.  Queued envelopes are discarded; if the outbox is
+	 * enabled they are replayed on the next start.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		queue.clear();
+		spilled.clear();
+		ready.clear();
+		parked.clear();
+		parkedCount = 0;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the number of envelopes waiting in this lane.
+	 *
+	 * @return the number of waiting envelopes
+	 */
+	public synchronized int size() {
+		return getQueued() + spilled.size() + reading + (head == null ? 0 : 1);
+	}
+
+	@Override
+	public void run() {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			// read spilled envelopes without blocking the producers
+			List<Outbox.Pointer> pointers;
+			synchronized (this) {
+				if (stopped) {
+					scheduled = false;
+					return;
+				}
+				pointers = takeSpilled();
+			}
+			if (pointers != null) {
+				List<Envelope> envelopes = read(pointers);
+				synchronized (this) {
+					reading = 0;
+					if (!stopped) {
+						queue.addAll(envelopes);
+					}
+				}
+			}
+
+			Envelope envelope;
+			synchronized (this) {
+				if (stopped) {
+					scheduled = false;
+					return;
+				}
+				envelope = next();
+				if (envelope == null) {
+					// idle, or every remaining flow waits for a resume
+					scheduled = false;
+					notifyAll();
+					return;
+				}
+				head = envelope;
+				// wake up blocked producers
+				notifyAll();
+			}
+
+			boolean done = true;
+			try {
+				done = handler.process(envelope);
+			} catch (Exception e) {
+				log.error("Failed to dispatch " + envelope, e);
+			}
+
+			synchronized (this) {
+				head = null;
+				if (!done && !stopped) {
+					if (resumed == envelope) {
+						ready.addFirst(envelope);
+					} else {
+						park(envelope);
+					}
+				}
+				resumed = null;
+			}
+		}
+
+		// yield to the other lanes
+		synchronized (this) {
+			scheduled = false;
+			schedule();
+		}
+	}
+
+	/**
+	 * Returns the next envelope which may be delivered.  Envelopes of parked
+	 * flows are parked behind the deferred envelope of their flow.  Must be
+	 * called while holding the lane lock.
+	 */
+	private Envelope next() {
+		while (true) {
+			Envelope envelope = ready.poll();
+			if (envelope == null) {
+				envelope = queue.poll();
+			}
+			if (envelope == null) {
+				return null;
+			}
+			ArrayDeque<Envelope> held = parked.get(getFlow(envelope));
+			if (held == null) {
+				return envelope;
+			}
+			held.add(envelope);
+			parkedCount++;
+		}
+	}
+
+	/**
+	 * Parks a deferred envelope, and the ready envelopes of its flow behind
+	 * it, until the envelope is resumed.  Must be called while holding the
+	 * lane lock.
+	 */
+	private void park(Envelope envelope) {
+		String flow = getFlow(envelope);
+		ArrayDeque<Envelope> held = new ArrayDeque<Envelope>();
+		held.add(envelope);
+		Iterator<Envelope> iterator = ready.iterator();
+		while (iterator.hasNext()) {
+			Envelope next = iterator.next();
+			if (flow.equals(getFlow(next))) {
+				held.add(next);
+				iterator.remove();
+			}
+		}
+		parked.put(flow, held);
+		parkedCount += held.size();
+	}
+
+	private static String getFlow(Envelope envelope) {
+		return envelope.getFlow() == null ? "" : envelope.getFlow();
+	}
+
+	/**
+	 * Returns the number of envelopes which have been taken into memory.
+	 */
+	private int getQueued() {
+		return queue.size() + ready.size() + parkedCount;
+	}
+
+	/**
+	 * Returns true if a new envelope may be queued without overtaking a
+	 * spilled envelope.  Must be called while holding the lane lock.
+	 */
+	private boolean hasRoom() {
+		return getQueued() < capacity && spilled.isEmpty() && reading == 0;
+	}
+
+	/**
+	 * Submits the lane to the dispatcher pool if it has work and is not
+	 * already submitted.  Must be called while holding the lane lock.
+	 */
+	private void schedule() {
+		if (scheduled || stopped) {
+			return;
+		}
+		if (ready.isEmpty() && queue.isEmpty() && spilled.isEmpty()) {
+			return;
+		}
+		scheduled = true;
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			scheduled = false;
+			log.warn("FlowDock dispatcher is stopped, lane {} not scheduled", index);
+		}
+	}
+
+	/**
+	 * Takes as many spilled pointers as there is room for.  The envelopes are
+	 * counted as being read until they are queued, so that new envelopes can
+	 * not overtake them.  Must be called while holding the lane lock.
+	 *
+	 * @return the pointers or null if there is nothing to read
+	 */
+	private List<Outbox.Pointer> takeSpilled() {
+		int room = capacity - getQueued();
+		if (room <= 0 || spilled.isEmpty()) {
+			return null;
+		}
+		List<Outbox.Pointer> pointers = new ArrayList<Outbox.Pointer>(Math.min(room, spilled.size()));
+		while (pointers.size() < room && !spilled.isEmpty()) {
+			pointers.add(spilled.poll());
+		}
+		reading = pointers.size();
+		return pointers;
+	}
+
+	/**
+	 * Reads spilled envelopes back from the outbox.
+	 */
+	private List<Envelope> read(List<Outbox.Pointer> pointers) {
+		List<Envelope> envelopes = new ArrayList<Envelope>(pointers.size());
+		for (Outbox.Pointer pointer : pointers) {
+			try {
+				envelopes.add(handler.read(pointer));
+			} catch (IOException e) {
+				log.error("Failed to read spilled FlowDock message " + pointer.id, e);
+			}
+		}
+		return envelopes;
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * A serialized payload which is ready to be posted to a FlowDock endpoint.
+ *
+ * The endpoint is kept with a {@link #TOKEN} placeholder instead of the API
+ * token of the flow, so envelopes written to the outbox never contain the
+ * token.  The token is resolved from the configuration when the envelope is
+ * delivered.
+ *
+ * @author James Moger
+ *
+ */
+public class Envelope {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The placeholder of the API token in an endpoint.
+	 */
+	public static final String TOKEN = "{token}";
+
+	final long id;
+
+	final String flow;
+
+	final String endpoint;
+
+	final boolean form;
+
+	final byte [] json;
+
+	/**
+	 * The outbox segment and offset of this envelope, if it has been stored.
+	 */
+	volatile Outbox.Pointer pointer;
+
+	/**
+	 * The number of failed delivery attempts.
+	 */
+	volatile int attempts;
+
+	/**
+	 * True if a rate limit token has already been reserved for this envelope.
+	 */
+	volatile boolean reserved;
+
+	/**
+	 * @param id
+	 * @param flow the flow or null for the default flow
+	 * @param endpoint the endpoint with a {@link #TOKEN} placeholder
+	 * @param form
+	 * @param json
+	 */
+	public Envelope(long id, String flow, String endpoint, boolean form, byte [] json) {
+		this.id = id;
+		this.flow = flow;
+		this.endpoint = endpoint;
+		this.form = form;
+		this.json = json;
+	}
+
+	/**
+	 * Returns a copy of this envelope with the specified id.
+	 *
+	 * @param id
+	 * @return an envelope
+	 */
+	public Envelope withId(long id) {
+		return new Envelope(id, flow, endpoint, form, json);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getFlow() {
+		return flow;
+	}
+
+	public String getEndPoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Returns the url of the endpoint for the API token.
+	 *
+	 * @param token
+	 * @return the url
+	 */
+	public String getUrl(String token) {
+		return endpoint.replace(TOKEN, String.valueOf(token));
+	}
+
+	public boolean isForm() {
+		return form;
+	}
+
+	/**
+	 * Returns the UTF-8 encoded JSON.
+	 *
+	 * @return the JSON bytes
+	 */
+	public byte [] getBody() {
+		return json;
+	}
+
+	public String getJson() {
+		return new String(json, UTF8);
+	}
+
+	public byte [] toBytes() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length + 256);
+		DataOutputStream os = new DataOutputStream(bytes);
+		os.writeUTF(flow == null ? "" : flow);
+		os.writeUTF(endpoint);
+		os.writeBoolean(form);
+		os.writeInt(json.length);
+		os.write(json);
+		os.flush();
+		return bytes.toByteArray();
+	}
+
+	public static Envelope fromBytes(long id, byte [] bytes) throws IOException {
+		DataInputStream is = new DataInputStream(new ByteArrayInputStream(bytes));
+		String flow = is.readUTF();
+		String endpoint = is.readUTF();
+		boolean form = is.readBoolean();
+		byte [] data = new byte[is.readInt()];
+		is.readFully(data);
+		return new Envelope(id, flow.isEmpty() ? null : flow, endpoint, form, data);
+	}
+
+	@Override
+	public String toString() {
+		return "message " + id + " for flow " + (flow == null ? "default" : flow);
+	}
+}
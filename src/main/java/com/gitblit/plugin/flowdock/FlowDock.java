@@ -16,38 +16,40 @@
 package com.gitblit.plugin.flowdock;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
-
-import org.apache.http.HttpResponse;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.params.AllClientPNames;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.CoreProtocolPNames;
+import org.apache.http.entity.ByteArrayEntity;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.gitblit.Constants;
+import com.gitblit.IStoredSettings;
 import com.gitblit.manager.IManager;
 import com.gitblit.manager.IRuntimeManager;
 import com.gitblit.models.RepositoryModel;
-import com.gitblit.utils.JsonUtils.GmtDateTypeAdapter;
+import com.gitblit.models.TicketModel;
+import com.gitblit.models.TicketModel.Change;
 import com.gitblit.utils.StringUtils;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 /**
  * Configures the final payload and sends a FlowDock message.
@@ -59,11 +61,69 @@ public class FlowDock implements IManager {
 
 	private static FlowDock instance;
 
+	/**
+	 * Seconds between checks for changed settings.
+	 */
+	static final int CONFIG_CHECK_INTERVAL = 10;
+
+	/**
+	 * The maximum number of repository and flow pairs with a commit index.
+	 */
+	static final int MAX_COMMIT_INDEXES = 64;
+
 	final Logger log = LoggerFactory.getLogger(getClass());
 
 	final IRuntimeManager runtimeManager;
 
-	final ExecutorService taskPool;
+	final Set<String> warnedFlows;
+
+	final ConcurrentMap<String, CircuitBreaker> breakers;
+
+	final Map<String, CommitIndex> commitIndexes;
+
+	private volatile FlowDockConfig config;
+
+	private volatile ScheduledExecutorService configWatcher;
+
+	private volatile ThreadPoolExecutor taskPool;
+
+	private volatile DispatchLane [] lanes;
+
+	private volatile ThreadPoolExecutor enrichPool;
+
+	private volatile CommitDiffer differ;
+
+	private volatile FlowDockClient client;
+
+	private volatile Outbox outbox;
+
+	private volatile RetryScheduler retries;
+
+	private volatile RetryPolicy retryPolicy;
+
+	private volatile RateLimiter rateLimiter;
+
+	private volatile int circuitFailureRate;
+
+	private volatile int circuitMinimumCalls;
+
+	private volatile int circuitWindow;
+
+	private volatile long circuitOpenTime;
+
+	private volatile int commitIndexSize;
+
+	private volatile DedupWindow dedup;
+
+	private volatile TicketDebouncer debouncer;
+
+	final TicketGenerators generators;
+
+	final BugtraqCache bugtraq;
+
+	final MarkdownCache markdown;
+
+	final UserCache users;
 
 	public static void init(IRuntimeManager manager) {
 		if (instance == null) {
@@ -77,20 +137,254 @@ public class FlowDock implements IManager {
 
 	FlowDock(IRuntimeManager runtimeManager) {
 		this.runtimeManager = runtimeManager;
-		this.taskPool = Executors.newCachedThreadPool();
+		this.warnedFlows = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+		this.commitIndexes = new LinkedHashMap<String, CommitIndex>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CommitIndex> eldest) {
+				return size() > MAX_COMMIT_INDEXES;
+			}
+		};
+		this.generators = new TicketGenerators();
+		this.bugtraq = new BugtraqCache(runtimeManager.getSettings(),
+				Math.max(1, runtimeManager.getSettings().getInteger(Plugin.SETTING_BUGTRAQ_CACHE_SIZE, 100)));
+		int markdownSize = runtimeManager.getSettings().getInteger(Plugin.SETTING_MARKDOWN_CACHE_SIZE, 4096);
+		this.markdown = markdownSize > 0 ? new MarkdownCache(markdownSize * 1024L) : null;
+		this.users = new UserCache(
+				TimeUnit.SECONDS.toMillis(runtimeManager.getSettings().getInteger(Plugin.SETTING_USER_CACHE_TTL, 300)),
+				Math.max(0, runtimeManager.getSettings().getInteger(Plugin.SETTING_USER_CACHE_SIZE, 1000)));
+		this.config = FlowDockConfig.load(runtimeManager.getSettings());
 	}
 
 	@Override
-	public FlowDock start() {
+	public synchronized FlowDock start() {
+		IStoredSettings settings = runtimeManager.getSettings();
+		if (configWatcher == null) {
+			configWatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FlowDock settings watcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			configWatcher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reloadConfig();
+				}
+			}, CONFIG_CHECK_INTERVAL, CONFIG_CHECK_INTERVAL, TimeUnit.SECONDS);
+		}
+		if (client == null) {
+			client = new FlowDockClient(settings);
+		}
+		if (taskPool == null) {
+			int threads = Math.max(1, settings.getInteger(Plugin.SETTING_DISPATCH_THREADS, 2));
+			int count = Math.max(1, settings.getInteger(Plugin.SETTING_DISPATCH_LANES, 16));
+			int capacity = Math.max(1, settings.getInteger(Plugin.SETTING_DISPATCH_QUEUE_SIZE, 500));
+			OverflowPolicy policy = OverflowPolicy.fromString(settings.getString(Plugin.SETTING_OVERFLOW_POLICY, null));
+			int timeout = settings.getInteger(Plugin.SETTING_OVERFLOW_TIMEOUT, 1000);
+
+			// a lane is submitted at most once, so the pool queue is bounded
+			// by the number of lanes
+			taskPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new DispatchThreadFactory("FlowDock dispatcher"));
+
+			DispatchLane.Handler handler = new DispatchLane.Handler() {
+				@Override
+				public boolean process(Envelope envelope) {
+					return FlowDock.this.process(envelope);
+				}
+
+				@Override
+				public void dropped(Envelope envelope) {
+					ack(envelope);
+				}
+
+				@Override
+				public Envelope read(Outbox.Pointer pointer) throws IOException {
+					Outbox box = outbox;
+					if (box == null) {
+						throw new IOException("FlowDock outbox is closed");
+					}
+					return box.read(pointer);
+				}
+			};
+			DispatchLane [] array = new DispatchLane[count];
+			for (int i = 0; i < count; i++) {
+				array[i] = new DispatchLane(i, capacity, policy, timeout, taskPool, handler);
+			}
+			lanes = array;
+			log.debug("FlowDock dispatcher: {} threads, {} lanes of {} queued messages, {} on overflow",
+					threads, count, capacity, policy);
+		}
+		if (enrichPool == null) {
+			int threads = Math.max(1, settings.getInteger(Plugin.SETTING_ENRICH_THREADS, 2));
+			int capacity = Math.max(1, settings.getInteger(Plugin.SETTING_ENRICH_QUEUE_SIZE, 100));
+			enrichPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(capacity),
+					new DispatchThreadFactory("FlowDock enricher"));
+		}
+		if (differ == null) {
+			int parallelism = settings.getInteger(Plugin.SETTING_DIFF_PARALLELISM,
+					Math.min(4, Runtime.getRuntime().availableProcessors()));
+			differ = new CommitDiffer(parallelism);
+		}
+		if (retries == null) {
+			retryPolicy = new RetryPolicy(
+					settings.getInteger(Plugin.SETTING_RETRY_ATTEMPTS, 10),
+					settings.getInteger(Plugin.SETTING_RETRY_DELAY, 1000),
+					settings.getInteger(Plugin.SETTING_RETRY_MAX_DELAY, 300000));
+			retries = new RetryScheduler(new RetryScheduler.Listener() {
+				@Override
+				public void onDue(Envelope envelope) {
+					resume(envelope);
+				}
+			});
+			retries.start();
+		}
+		int rate = settings.getInteger(Plugin.SETTING_RATE_LIMIT, 60);
+		if (rate > 0) {
+			rateLimiter = new RateLimiter(rate, settings.getInteger(Plugin.SETTING_RATE_BURST, 10));
+		} else {
+			rateLimiter = null;
+		}
+		circuitFailureRate = settings.getInteger(Plugin.SETTING_CIRCUIT_FAILURE_RATE, 50);
+		circuitMinimumCalls = settings.getInteger(Plugin.SETTING_CIRCUIT_MINIMUM_CALLS, 10);
+		circuitWindow = settings.getInteger(Plugin.SETTING_CIRCUIT_WINDOW, 20);
+		circuitOpenTime = settings.getInteger(Plugin.SETTING_CIRCUIT_OPEN_TIME, 30000);
+		breakers.clear();
+		commitIndexSize = settings.getInteger(Plugin.SETTING_COMMIT_INDEX_SIZE, 10000);
+		if (debouncer == null) {
+			int interval = settings.getInteger(Plugin.SETTING_TICKET_DEBOUNCE, 1000);
+			if (interval > 0) {
+				debouncer = new TicketDebouncer(interval);
+			}
+		}
+		int window = settings.getInteger(Plugin.SETTING_DEDUP_WINDOW, 600);
+		if (window > 0) {
+			File file = null;
+			if (settings.getBoolean(Plugin.SETTING_DEDUP_SHARED, false)) {
+				file = runtimeManager.getFileOrFolder(Plugin.SETTING_DEDUP_FILE, "${baseFolder}/flowdock/dedup");
+			}
+			dedup = new DedupWindow(window * 1000L, settings.getInteger(Plugin.SETTING_DEDUP_SIZE, 10000), file);
+		} else {
+			dedup = null;
+		}
+		if (outbox == null && settings.getBoolean(Plugin.SETTING_OUTBOX, true)) {
+			File folder = runtimeManager.getFileOrFolder(Plugin.SETTING_OUTBOX_FOLDER, "${baseFolder}/flowdock/outbox");
+			long segmentSize = settings.getInteger(Plugin.SETTING_OUTBOX_SEGMENT_SIZE, 4096) * 1024L;
+			int batchSize = settings.getInteger(Plugin.SETTING_OUTBOX_BATCH_SIZE, 128);
+			Outbox box = new Outbox(folder, segmentSize, batchSize, new Outbox.Listener() {
+				@Override
+				public void onStored(Envelope envelope) {
+					dispatch(envelope, false);
+				}
+			});
+			try {
+				List<Envelope> recovered = box.open();
+				outbox = box;
+				for (Envelope envelope : recovered) {
+					dispatch(envelope, false);
+				}
+			} catch (IOException e) {
+				log.error("Failed to open the FlowDock outbox, messages will not be persisted", e);
+			}
+		}
 		return this;
 	}
 
 	@Override
-	public FlowDock stop() {
-		this.taskPool.shutdown();
+	public synchronized FlowDock stop() {
+		if (configWatcher != null) {
+			configWatcher.shutdownNow();
+			configWatcher = null;
+		}
+		if (debouncer != null) {
+			// post the pending ticket updates while the dispatcher runs
+			debouncer.close();
+			debouncer = null;
+		}
+		if (retries != null) {
+			retries.stop();
+			retries = null;
+		}
+		if (enrichPool != null) {
+			enrichPool.shutdown();
+			try {
+				enrichPool.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			enrichPool = null;
+		}
+		if (differ != null) {
+			differ.close();
+			differ = null;
+		}
+		if (lanes != null) {
+			for (DispatchLane lane : lanes) {
+				lane.stop();
+			}
+			lanes = null;
+		}
+		if (taskPool != null) {
+			taskPool.shutdown();
+			try {
+				taskPool.awaitTermination(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			taskPool = null;
+		}
+		if (outbox != null) {
+			// undelivered messages are replayed on the next start
+			outbox.close();
+			outbox = null;
+		}
+		if (client != null) {
+			client.close();
+			client = null;
+		}
+		generators.clear();
+		bugtraq.clear();
+		if (markdown != null) {
+			markdown.clear();
+		}
+		users.clear();
 		return this;
 	}
 
+	/**
+	 * Returns the current settings snapshot.
+	 *
+	 * @return the settings snapshot
+	 */
+	public FlowDockConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Replaces the settings snapshot if the settings have changed.
+	 */
+	void reloadConfig() {
+		try {
+			FlowDockConfig current = config;
+			FlowDockConfig reloaded = current.reload(runtimeManager.getSettings());
+			if (reloaded != current) {
+				config = reloaded;
+				warnedFlows.clear();
+				log.info("Reloaded FlowDock settings");
+			}
+		} catch (Exception e) {
+			log.error("Failed to reload FlowDock settings", e);
+		}
+	}
+
 	/**
 	 * Returns true if the repository can be posted to FlowDock.
 	 *
@@ -98,8 +392,7 @@ public class FlowDock implements IManager {
 	 * @return true if the repository can be posted to FlowDock
 	 */
 	public boolean shallPost(RepositoryModel repository) {
-		boolean postPersonalRepos = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
-		if (repository.isPersonalRepository() && !postPersonalRepos) {
+		if (repository.isPersonalRepository() && !config.isPostPersonalRepos()) {
 			return false;
 		}
 		return true;
@@ -112,26 +405,195 @@ public class FlowDock implements IManager {
 	 * @param payload
 	 */
 	public void setFlow(RepositoryModel repository, Payload payload) {
-		boolean useProjectFlows = runtimeManager.getSettings().getBoolean(Plugin.SETTING_USE_PROJECT_FLOWS, false);
-		if (!useProjectFlows) {
-			return;
+		String flow = getFlow(repository);
+		if (flow != null) {
+			payload.setFlow(flow);
+		}
+	}
+
+	/**
+	 * Returns the flow for the repository or null for the default flow.
+	 *
+	 * @param repository
+	 * @return the flow or null
+	 */
+	public String getFlow(RepositoryModel repository) {
+		if (!config.isUseProjectFlows()) {
+			return null;
 		}
 
 		if (StringUtils.isEmpty(repository.projectPath)) {
-			return;
+			return null;
 		}
 
-		payload.setFlow(repository.projectPath);
+		return repository.projectPath;
 	}
 
 	/**
-	 * Asynchronously send a payload message.
+	 * Asynchronously send a payload message.  If the outbox is enabled the
+	 * message is stored before it is dispatched.
 	 *
 	 * @param payload
-	 * @throws IOException
 	 */
 	public void sendAsync(final Payload payload) {
-		taskPool.submit(new FlowDockTask(this, payload));
+		Envelope envelope = prepare(payload);
+		Outbox box = outbox;
+		if (box == null) {
+			dispatch(envelope, true);
+		} else {
+			box.append(envelope);
+		}
+	}
+
+	/**
+	 * Returns the configured ticket payload generator.  The generator is
+	 * shared and only loaded again when the setting changes.
+	 *
+	 * @return the ticket payload generator
+	 */
+	public TicketPayloadGenerator getTicketGenerator() {
+		return generators.get(config.getTicketPayloadGenerator());
+	}
+
+	/**
+	 * Returns the cache of compiled bugtraq configurations.
+	 *
+	 * @return the bugtraq cache
+	 */
+	public BugtraqCache getBugtraqCache() {
+		return bugtraq;
+	}
+
+	/**
+	 * Returns the cache of rendered ticket markdown.
+	 *
+	 * @return the markdown cache or null if rendered markdown is not cached
+	 */
+	public MarkdownCache getMarkdownCache() {
+		return markdown;
+	}
+
+	/**
+	 * Returns the cache of user display names and email addresses.
+	 *
+	 * @return the user cache
+	 */
+	public UserCache getUserCache() {
+		return users;
+	}
+
+	/**
+	 * Claims an event within the dedup window.  Of several claims of an
+	 * event, by this node or by other nodes sharing the dedup file, exactly
+	 * one succeeds.  Claim events before building their payloads so that
+	 * duplicates cost nothing, and release the claim if the event could not
+	 * be posted.  This may write the dedup file, so do not call it on a
+	 * request thread.
+	 *
+	 * @param key the key of the event, see {@link DedupWindow#key(String...)}
+	 * @return false if the event has already been claimed and must not be
+	 *         posted
+	 */
+	public boolean claim(String key) {
+		DedupWindow window = dedup;
+		if (window == null || window.claim(key)) {
+			return true;
+		}
+		log.debug("FlowDock event {} has already been posted", key);
+		return false;
+	}
+
+	/**
+	 * Releases the claim of an event which could not be posted, so that the
+	 * event is posted when it is replayed.
+	 *
+	 * @param key the key of the event, see {@link DedupWindow#key(String...)}
+	 */
+	public void release(String key) {
+		DedupWindow window = dedup;
+		if (window != null) {
+			window.release(key);
+		}
+	}
+
+	/**
+	 * Holds a ticket update back for the debounce interval so that it can be
+	 * merged with further updates of the ticket.  The listener is notified
+	 * with the merged change.
+	 *
+	 * @param ticket
+	 * @param change
+	 * @param listener
+	 * @return false if updates are not debounced and the caller must post
+	 *         the update itself
+	 */
+	public boolean debounce(TicketModel ticket, Change change, TicketDebouncer.Listener listener) {
+		TicketDebouncer d = debouncer;
+		if (d == null) {
+			return false;
+		}
+		d.offer(ticket, change, listener);
+		return true;
+	}
+
+	/**
+	 * Runs a task which builds payloads on the bounded enrichment pool, off
+	 * the thread of the git push or ticket change.  The task is dropped if
+	 * the pool is saturated.
+	 *
+	 * @param task
+	 */
+	public void enrich(Runnable task) {
+		ThreadPoolExecutor pool = enrichPool;
+		if (pool == null) {
+			log.error("FlowDock has not been started, not posting event");
+			return;
+		}
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			log.warn("FlowDock enrichment queue is full, not posting event");
+		}
+	}
+
+	/**
+	 * Returns the index of the commits which have been announced to a flow
+	 * for a repository.
+	 *
+	 * @param repository
+	 * @param flow the flow or null for the default flow
+	 * @return the commit index or null if commits are not indexed
+	 */
+	public CommitIndex getCommitIndex(String repository, String flow) {
+		int size = commitIndexSize;
+		if (size <= 0) {
+			return null;
+		}
+		String key = repository + (flow == null ? "" : ":" + flow);
+		synchronized (commitIndexes) {
+			CommitIndex index = commitIndexes.get(key);
+			if (index == null) {
+				index = new CommitIndex(size);
+				commitIndexes.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Computes the changed paths of commits on the diff pool.
+	 *
+	 * @param db
+	 * @param commits
+	 * @return the changed paths of each commit, in the order of the commits
+	 */
+	public List<CommitDiffer.Paths> diff(Repository db, List<? extends AnyObjectId> commits) {
+		CommitDiffer d = differ;
+		if (d == null) {
+			// not started, diff on the calling thread
+			d = new CommitDiffer(1);
+		}
+		return d.diff(db, commits);
 	}
 
 	/**
@@ -141,103 +603,354 @@ public class FlowDock implements IManager {
 	 * @throws IOException
 	 */
 	public void send(Payload payload) throws IOException {
+		deliver(prepare(payload));
+	}
 
-		String flow = payload.getFlow();
-		String token;
+	/**
+	 * Serializes the payload.  The envelope refers to the flow and not to
+	 * its token, which is resolved on delivery.
+	 *
+	 * @param payload
+	 * @return an envelope ready to be delivered
+	 */
+	protected Envelope prepare(Payload payload) {
+		String flow = StringUtils.isEmpty(payload.getFlow()) ? null : payload.getFlow();
+		byte [] json = PayloadSerializer.serialize(payload);
+		if (log.isDebugEnabled()) {
+			log.debug(new String(json, Envelope.UTF8));
+		}
+
+		return new Envelope(0, flow, payload.getEndPoint(Envelope.TOKEN), payload.postForm(), json);
+	}
 
+	/**
+	 * Returns the API token of a flow from the current configuration.
+	 *
+	 * @param flow the flow or null for the default flow
+	 * @return the token
+	 */
+	protected String getToken(String flow) {
+		FlowDockConfig config = this.config;
 		if (StringUtils.isEmpty(flow)) {
 			// default flow
-			token = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
-		} else {
-			// specified flow, validate token
-			token = runtimeManager.getSettings().getString(String.format(Plugin.SETTING_FLOW_TOKEN, flow), null);
-			if (StringUtils.isEmpty(token)) {
-				token = runtimeManager.getSettings().getString(Plugin.SETTING_DEFAULT_TOKEN, null);
-				log.warn("No FlowDock API token specified for '{}', defaulting to default flow'", payload.getFlow());
+			return config.getDefaultToken();
+		}
+
+		// specified flow, validate token
+		String token = config.getFlowToken(flow);
+		if (token == null) {
+			token = config.getDefaultToken();
+			if (warnedFlows.add(flow)) {
+				log.warn("No FlowDock API token specified for '{}', defaulting to default flow'", flow);
 				log.warn("Please set '{} = TOKEN' in gitblit.properties", String.format(Plugin.SETTING_FLOW_TOKEN, flow));
 			}
 		}
+		return token;
+	}
 
-		Gson gson = new GsonBuilder().registerTypeAdapter(Date.class, new GmtDateTypeAdapter()).create();
-		String json = gson.toJson(payload);
-		log.debug(json);
-
-		HttpClient client = new DefaultHttpClient();
-		client.getParams().setParameter(AllClientPNames.CONNECTION_TIMEOUT, 5000);
-		client.getParams().setParameter(AllClientPNames.SO_TIMEOUT, 5000);
-
-		String flowdockUrl = payload.getEndPoint(token);
-		HttpPost post = new HttpPost(flowdockUrl);
-		post.getParams().setParameter(CoreProtocolPNames.USER_AGENT, Constants.NAME + "/" + Constants.getVersion());
-		post.getParams().setParameter(CoreProtocolPNames.HTTP_CONTENT_CHARSET, "UTF-8");
+	/**
+	 * Post an envelope to FlowDock.
+	 *
+	 * @param envelope
+	 * @throws IOException
+	 */
+	protected void deliver(Envelope envelope) throws IOException {
+		FlowDockClient client = this.client;
+		if (client == null) {
+			throw new IOException("FlowDock has not been started");
+		}
 
-		if (payload.postForm()) {
+		HttpEntity entity;
+		if (envelope.isForm()) {
 			// post as a form with a "payload" value
-			List<NameValuePair> nvps = new ArrayList<NameValuePair>(1);
-			nvps.add(new BasicNameValuePair("payload",json));
-			post.setEntity(new UrlEncodedFormEntity(nvps, "UTF-8"));
+			entity = formEntity("payload", envelope.getBody());
 		} else {
 			// post as JSON
-			StringEntity entity = new StringEntity(json, "UTF-8");
-			entity.setContentType("application/json");
-			post.setEntity(entity);
+			ByteArrayEntity body = new ByteArrayEntity(envelope.getBody());
+			body.setContentType("application/json");
+			entity = body;
 		}
 
-		HttpResponse response = client.execute(post);
-		int rc = response.getStatusLine().getStatusCode();
+		// refuse without any I/O while the endpoint is failing
+		String url = envelope.getUrl(getToken(envelope.getFlow()));
+		CircuitBreaker breaker = getBreaker(url);
+		if (breaker != null) {
+			breaker.acquire();
+		}
 
-		if (HttpStatus.SC_OK == rc) {
-			// This is the expected result code
-			// replace this with post.closeConnection() after JGit updates to HttpClient 4.2
-			post.abort();
-		} else {
-			String result = null;
-			InputStream is = response.getEntity().getContent();
-			try {
-				byte [] buffer = new byte[8192];
-				ByteArrayOutputStream os = new ByteArrayOutputStream();
-				int len = 0;
-				while ((len = is.read(buffer)) > -1) {
-					os.write(buffer, 0, len);
-				}
-				result = os.toString("UTF-8");
-			} finally {
-				if (is != null) {
-					is.close();
-				}
-			}
+		FlowDockClient.Response response;
+		try {
+			response = client.post(url, entity);
+		} catch (IOException e) {
+			record(breaker, CircuitBreaker.isFailure(e));
+			throw e;
+		} catch (RuntimeException e) {
+			record(breaker, true);
+			throw e;
+		}
+		int rc = response.getStatus();
+
+		if (HttpStatus.SC_OK != rc) {
+			String result = response.getBody();
 
 			log.error("FlowDock plugin sent:");
-			log.error(json);
+			log.error(envelope.getJson());
 			log.error("FlowDock returned:");
 			log.error(result);
 
-			throw new IOException(String.format("FlowDock Error (%s): %s", rc, result));
+			FlowDockException e = new FlowDockException(rc, response.getRetryAfter(),
+					String.format("FlowDock Error (%s): %s", rc, result));
+			record(breaker, CircuitBreaker.isFailure(e));
+			throw e;
 		}
+		record(breaker, false);
 	}
 
-	private static class FlowDockTask implements Serializable, Callable<Boolean> {
+	/**
+	 * Returns the circuit breaker of the endpoint of the url.
+	 *
+	 * @param url
+	 * @return the circuit breaker or null if circuit breaking is disabled
+	 */
+	CircuitBreaker getBreaker(String url) {
+		if (circuitFailureRate <= 0) {
+			return null;
+		}
+		// scheme, host and port
+		int start = url.indexOf("://");
+		int end = url.indexOf('/', start < 0 ? 0 : start + 3);
+		String endpoint = end < 0 ? url : url.substring(0, end);
+
+		CircuitBreaker breaker = breakers.get(endpoint);
+		if (breaker == null) {
+			breaker = new CircuitBreaker(endpoint, circuitFailureRate, circuitMinimumCalls,
+					circuitWindow, circuitOpenTime);
+			CircuitBreaker existing = breakers.putIfAbsent(endpoint, breaker);
+			if (existing != null) {
+				breaker = existing;
+			}
+		}
+		return breaker;
+	}
 
-		private static final long serialVersionUID = 1L;
+	/**
+	 * Records the outcome of a request in the circuit breaker.
+	 *
+	 * @param breaker
+	 * @param failure
+	 */
+	void record(CircuitBreaker breaker, boolean failure) {
+		if (breaker == null) {
+			return;
+		}
+		if (failure) {
+			if (breaker.onFailure()) {
+				log.warn("{} is open, deferring messages for {} ms", breaker, circuitOpenTime);
+			}
+		} else if (breaker.onSuccess()) {
+			log.info("{} is closed", breaker);
+		}
+	}
 
-		final Logger log = LoggerFactory.getLogger(getClass());
-		final FlowDock flowdock;
-		final Payload payload;
+	/**
+	 * Creates a form entity with a single UTF-8 value, encoded exactly like
+	 * {@link org.apache.http.client.entity.UrlEncodedFormEntity}.
+	 *
+	 * @param name
+	 * @param value the UTF-8 bytes of the value
+	 * @return a form entity
+	 */
+	static HttpEntity formEntity(String name, byte [] value) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(name.length() + 1 + value.length * 3 / 2);
+		byte [] prefix = (name + "=").getBytes(Envelope.UTF8);
+		os.write(prefix, 0, prefix.length);
+		for (byte b : value) {
+			int c = b & 0xff;
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '_' || c == '.' || c == '*') {
+				os.write(c);
+			} else if (c == ' ') {
+				os.write('+');
+			} else {
+				os.write('%');
+				os.write(Character.toUpperCase(Character.forDigit(c >> 4, 16)));
+				os.write(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+			}
+		}
+		ByteArrayEntity entity = new ByteArrayEntity(os.toByteArray());
+		entity.setContentType("application/x-www-form-urlencoded; charset=UTF-8");
+		return entity;
+	}
 
-		public FlowDockTask(FlowDock slacker, Payload payload) {
-			this.flowdock = slacker;
-			this.payload = payload;
+	/**
+	 * Queues an envelope on the lane of its flow.
+	 *
+	 * @param envelope
+	 * @param wait true if the caller may wait for room in the lane, false
+	 *        for the outbox writer
+	 */
+	void dispatch(Envelope envelope, boolean wait) {
+		DispatchLane lane = getLane(envelope);
+		if (lane == null) {
+			log.error("FlowDock has not been started, dropping {}", envelope);
+			return;
 		}
+		lane.offer(envelope, wait);
+	}
 
-		@Override
-		public Boolean call() {
-			try {
-				flowdock.send(payload);
-				return true;
-			} catch (IOException e) {
-				log.error("Failed to send asynchronously to FlowDock!", e);
+	/**
+	 * Resumes the lane of a deferred envelope.
+	 *
+	 * @param envelope
+	 */
+	void resume(Envelope envelope) {
+		DispatchLane lane = getLane(envelope);
+		if (lane != null) {
+			lane.resume(envelope);
+		}
+	}
+
+	/**
+	 * Returns the lane of the envelope flow.  All envelopes of a flow share
+	 * one lane and are delivered in the order they were dispatched.
+	 *
+	 * @param envelope
+	 * @return the lane or null if FlowDock has not been started
+	 */
+	DispatchLane getLane(Envelope envelope) {
+		DispatchLane [] array = lanes;
+		if (array == null) {
+			return null;
+		}
+		String flow = envelope.getFlow();
+		int hash = flow == null ? 0 : flow.hashCode() & Integer.MAX_VALUE;
+		return array[hash % array.length];
+	}
+
+	/**
+	 * Delivers the head envelope of a lane.
+	 *
+	 * @param envelope
+	 * @return false if the envelope has been deferred and its flow must wait
+	 */
+	boolean process(Envelope envelope) {
+		if (!acquire(envelope)) {
+			return false;
+		}
+		try {
+			deliver(envelope);
+			ack(envelope);
+			return true;
+		} catch (CircuitBreaker.OpenException e) {
+			RetryScheduler scheduler = retries;
+			if (scheduler == null) {
+				return !retry(envelope, e);
 			}
+			// not an attempt, keep the rate limit token for the next one
+			log.debug("{}, deferring {} for {} ms", e.getMessage(), envelope, e.getWait());
+			envelope.reserved = true;
+			scheduler.schedule(envelope, e.getWait());
 			return false;
+		} catch (IOException e) {
+			return !retry(envelope, e);
+		}
+	}
+
+	/**
+	 * Reserves a rate limit token for the envelope flow.  If the token is not
+	 * available yet, the envelope is deferred until it is.
+	 *
+	 * @param envelope
+	 * @return true if the envelope may be sent now
+	 */
+	boolean acquire(Envelope envelope) {
+		RateLimiter limiter = rateLimiter;
+		RetryScheduler scheduler = retries;
+		if (limiter == null || scheduler == null) {
+			return true;
+		}
+		if (envelope.reserved) {
+			// deferred with a reserved token
+			envelope.reserved = false;
+			return true;
+		}
+		long wait = limiter.reserve(envelope.getFlow());
+		if (wait <= 0) {
+			return true;
+		}
+		log.debug("Rate limit reached, deferring {} for {} ms", envelope, wait);
+		envelope.reserved = true;
+		scheduler.schedule(envelope, wait);
+		return false;
+	}
+
+	/**
+	 * Schedules a retry for a failed envelope if the failure is retryable.
+	 * Permanently failed envelopes are removed from the outbox, envelopes
+	 * which have exhausted their attempts are moved to the dead letters of
+	 * the outbox and sent again on the next start.
+	 *
+	 * @param envelope
+	 * @param e
+	 * @return true if a retry has been scheduled
+	 */
+	boolean retry(Envelope envelope, IOException e) {
+		RetryScheduler scheduler = retries;
+		RetryPolicy policy = retryPolicy;
+		if (scheduler == null || policy == null) {
+			log.error("Failed to send " + envelope + " to FlowDock!", e);
+			return false;
+		}
+
+		if (!policy.isRetryable(e)) {
+			log.error("Failed to send " + envelope + " to FlowDock, not retrying", e);
+			ack(envelope);
+			return false;
+		}
+
+		int attempts = ++envelope.attempts;
+		if (attempts >= policy.getMaxAttempts()) {
+			log.error(String.format("Failed to send %s to FlowDock after %d attempts", envelope, attempts), e);
+			Outbox box = outbox;
+			if (box != null) {
+				box.deadLetter(envelope);
+			}
+			return false;
+		}
+
+		long delay = policy.getDelay(attempts, e);
+		log.warn("Failed to send {} to FlowDock ({}), retrying in {} ms", envelope, e.getMessage(), delay);
+		scheduler.schedule(envelope, delay);
+		return true;
+	}
+
+	/**
+	 * Marks an envelope as no longer needing delivery.
+	 *
+	 * @param envelope
+	 */
+	void ack(Envelope envelope) {
+		Outbox box = outbox;
+		if (box != null) {
+			box.ack(envelope.getId());
+		}
+	}
+
+	private static class DispatchThreadFactory implements ThreadFactory {
+
+		final String name;
+
+		final AtomicInteger counter = new AtomicInteger();
+
+		DispatchThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + " " + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
 		}
 	}
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.Constants;
+import com.gitblit.IStoredSettings;
+
+/**
+ * Long-lived, pooled HTTP transport for the FlowDock API.
+ *
+ * Connections are kept alive and reused across messages.  A background task
+ * evicts expired and idle connections from the pool.
+ *
+ * @author James Moger
+ *
+ */
+public class FlowDockClient implements Closeable {
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	private final CloseableHttpClient client;
+
+	private final ScheduledExecutorService evictor;
+
+	public FlowDockClient(IStoredSettings settings) {
+		int maxConnections = Math.max(1, settings.getInteger(Plugin.SETTING_MAX_CONNECTIONS, 20));
+		int maxPerRoute = Math.max(1, settings.getInteger(Plugin.SETTING_MAX_CONNECTIONS_PER_ROUTE, 5));
+		int connectTimeout = settings.getInteger(Plugin.SETTING_CONNECT_TIMEOUT, 5000);
+		int socketTimeout = settings.getInteger(Plugin.SETTING_SOCKET_TIMEOUT, 5000);
+		final long keepAlive = TimeUnit.SECONDS.toMillis(settings.getInteger(Plugin.SETTING_KEEP_ALIVE, 30));
+		final long idleTimeout = TimeUnit.SECONDS.toMillis(Math.max(1, settings.getInteger(Plugin.SETTING_IDLE_CONNECTION_TIMEOUT, 60)));
+
+		connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.build();
+
+		// honor the server's Keep-Alive header, otherwise use our default
+		ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+			@Override
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				if (duration > 0) {
+					return duration;
+				}
+				return keepAlive;
+			}
+		};
+
+		client = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(keepAliveStrategy)
+				.setUserAgent(Constants.NAME + "/" + Constants.getVersion())
+				.build();
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FlowDock connection evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long period = Math.max(1000, idleTimeout / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				connectionManager.closeExpiredConnections();
+				connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		log.debug("FlowDock client: {} connections, {} per route, {}ms keep-alive",
+				maxConnections, maxPerRoute, keepAlive);
+	}
+
+	/**
+	 * POST an entity to the url.  The response entity is always consumed so
+	 * that the connection is returned to the pool.
+	 *
+	 * @param url
+	 * @param entity
+	 * @return the response
+	 * @throws IOException
+	 */
+	public Response post(String url, HttpEntity entity) throws IOException {
+		HttpPost post = new HttpPost(url);
+		post.setEntity(entity);
+
+		CloseableHttpResponse response = client.execute(post);
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			String body = null;
+			HttpEntity result = response.getEntity();
+			if (result != null) {
+				body = EntityUtils.toString(result, "UTF-8");
+			}
+			Header retryAfter = response.getFirstHeader("Retry-After");
+			return new Response(status, body, retryAfter == null ? null : retryAfter.getValue());
+		} finally {
+			response.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		evictor.shutdownNow();
+		try {
+			client.close();
+		} catch (IOException e) {
+			log.error("Failed to close FlowDock client", e);
+		}
+		connectionManager.shutdown();
+	}
+
+	/**
+	 * The status and body of a FlowDock API response.
+	 */
+	public static class Response {
+
+		final int status;
+
+		final String body;
+
+		final String retryAfter;
+
+		Response(int status, String body, String retryAfter) {
+			this.status = status;
+			this.body = body;
+			this.retryAfter = retryAfter;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public String getBody() {
+			return body;
+		}
+
+		public String getRetryAfter() {
+			return retryAfter;
+		}
+	}
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.IStoredSettings;
+import com.gitblit.Keys;
+import com.gitblit.models.UserModel;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * Immutable snapshot of the plugin settings used on the push and ticket
+ * paths.
+ *
+ * A snapshot is built once from the stored settings and replaced as a whole
+ * when the settings change, so readers never parse settings.
+ *
+ * @author James Moger
+ *
+ */
+public final class FlowDockConfig {
+
+	static final Logger log = LoggerFactory.getLogger(FlowDockConfig.class);
+
+	static final AtomicLong VERSIONS = new AtomicLong();
+
+	static final String PREFIX = "flowdock.";
+
+	static final Pattern FLOW_TOKEN_PATTERN = Pattern.compile("^flowdock\\.(.+)\\.token$");
+
+	static final Pattern PATHS_PATTERN = Pattern.compile("^flowdock\\.(.+)\\.includePaths$");
+
+	static final Pattern REPOSITORY_REFS_PATTERN = Pattern.compile("^flowdock\\.(.+)\\.(include|exclude)Refs$");
+
+	final String fingerprint;
+
+	final long version;
+
+	final String defaultToken;
+
+	final Map<String, String> flowTokens;
+
+	final boolean useProjectFlows;
+
+	final boolean postPersonalRepos;
+
+	final boolean postTickets;
+
+	final boolean postTicketComments;
+
+	final boolean postBranches;
+
+	final boolean postTags;
+
+	final List<String> fixedCommitTags;
+
+	final List<String> fixedTicketTags;
+
+	final String ticketPayloadGenerator;
+
+	final int aggregateThreshold;
+
+	final int aggregateMaxRefs;
+
+	final RefMatcher includeRefs;
+
+	final RefMatcher excludeRefs;
+
+	final Map<String, RefMatcher> repositoryIncludeRefs;
+
+	final Map<String, RefMatcher> repositoryExcludeRefs;
+
+	final TreeFilter includePaths;
+
+	final Set<String> ignoreUsers;
+
+	final List<String> ignoreTeams;
+
+	final List<Pattern> ignoreEmails;
+
+	final String skipMarker;
+
+	final Map<String, TreeFilter> scopedIncludePaths;
+
+	final LinkBuilder links;
+
+	private FlowDockConfig(IStoredSettings settings, String fingerprint) {
+		this.fingerprint = fingerprint;
+		this.version = VERSIONS.incrementAndGet();
+
+		defaultToken = settings.getString(Plugin.SETTING_DEFAULT_TOKEN, null);
+
+		Map<String, String> tokens = new HashMap<String, String>();
+		Map<String, RefMatcher> includes = new HashMap<String, RefMatcher>();
+		Map<String, RefMatcher> excludes = new HashMap<String, RefMatcher>();
+		Map<String, TreeFilter> paths = new HashMap<String, TreeFilter>();
+		for (String key : settings.getAllKeys(PREFIX)) {
+			Matcher m = FLOW_TOKEN_PATTERN.matcher(key);
+			if (m.matches()) {
+				String token = settings.getString(key, null);
+				if (!StringUtils.isEmpty(token)) {
+					tokens.put(m.group(1), token);
+				}
+				continue;
+			}
+			m = PATHS_PATTERN.matcher(key);
+			if (m.matches()) {
+				TreeFilter filter = compilePaths(settings.getStrings(key));
+				if (filter != null) {
+					paths.put(m.group(1).toLowerCase(), filter);
+				}
+				continue;
+			}
+			m = REPOSITORY_REFS_PATTERN.matcher(key);
+			if (m.matches()) {
+				RefMatcher matcher = RefMatcher.compile(settings.getStrings(key));
+				if (!matcher.isEmpty()) {
+					String repository = m.group(1).toLowerCase();
+					if ("include".equals(m.group(2))) {
+						includes.put(repository, matcher);
+					} else {
+						excludes.put(repository, matcher);
+					}
+				}
+			}
+		}
+		flowTokens = Collections.unmodifiableMap(tokens);
+		repositoryIncludeRefs = Collections.unmodifiableMap(includes);
+		repositoryExcludeRefs = Collections.unmodifiableMap(excludes);
+		includeRefs = RefMatcher.compile(settings.getStrings(Plugin.SETTING_INCLUDE_REFS));
+		excludeRefs = RefMatcher.compile(settings.getStrings(Plugin.SETTING_EXCLUDE_REFS));
+		scopedIncludePaths = Collections.unmodifiableMap(paths);
+		includePaths = compilePaths(settings.getStrings(Plugin.SETTING_INCLUDE_PATHS));
+
+		Set<String> users = new HashSet<String>();
+		for (String user : immutable(settings.getStrings(Plugin.SETTING_IGNORE_USERS))) {
+			users.add(user.toLowerCase());
+		}
+		ignoreUsers = Collections.unmodifiableSet(users);
+		ignoreTeams = immutable(settings.getStrings(Plugin.SETTING_IGNORE_TEAMS));
+		List<Pattern> emails = new ArrayList<Pattern>();
+		for (String email : immutable(settings.getStrings(Plugin.SETTING_IGNORE_EMAILS))) {
+			String regex = email.startsWith(RefMatcher.REGEX_PREFIX)
+					? email.substring(RefMatcher.REGEX_PREFIX.length()) : RefMatcher.globToRegex(email);
+			try {
+				emails.add(Pattern.compile(regex, Pattern.CASE_INSENSITIVE));
+			} catch (PatternSyntaxException e) {
+				log.error("Ignoring invalid FlowDock email pattern " + email, e);
+			}
+		}
+		ignoreEmails = Collections.unmodifiableList(emails);
+		String marker = settings.getString(Plugin.SETTING_SKIP_MARKER, "[skip flowdock]");
+		skipMarker = StringUtils.isEmpty(marker) ? null : marker.trim();
+
+		useProjectFlows = settings.getBoolean(Plugin.SETTING_USE_PROJECT_FLOWS, false);
+		postPersonalRepos = settings.getBoolean(Plugin.SETTING_POST_PERSONAL_REPOS, false);
+		postTickets = settings.getBoolean(Plugin.SETTING_POST_TICKETS, true);
+		postTicketComments = settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true);
+		postBranches = settings.getBoolean(Plugin.SETTING_POST_BRANCHES, true);
+		postTags = settings.getBoolean(Plugin.SETTING_POST_TAGS, true);
+		fixedCommitTags = immutable(settings.getStrings(Plugin.SETTING_FIXED_COMMIT_TAGS));
+		fixedTicketTags = immutable(settings.getStrings(Plugin.SETTING_FIXED_TICKET_TAGS));
+
+		String generator = settings.getString(Plugin.SETTING_TICKET_PAYLOAD_GENERATOR, null);
+		if (StringUtils.isEmpty(generator)) {
+			generator = TicketEmailGenerator.class.getName();
+		}
+		ticketPayloadGenerator = generator;
+
+		aggregateThreshold = settings.getInteger(Plugin.SETTING_AGGREGATE_THRESHOLD, 0);
+		aggregateMaxRefs = Math.max(1, settings.getInteger(Plugin.SETTING_AGGREGATE_MAX_REFS, 50));
+
+		links = new LinkBuilder(settings.getString(Keys.web.canonicalUrl, "https://localhost:8443"));
+	}
+
+	/**
+	 * Compiles path prefixes into a tree filter.
+	 *
+	 * @param values
+	 * @return a path filter or null if there are no paths
+	 */
+	static TreeFilter compilePaths(List<String> values) {
+		if (values == null) {
+			return null;
+		}
+		List<String> paths = new ArrayList<String>();
+		for (String value : values) {
+			String path = value.trim();
+			while (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			while (path.endsWith("/")) {
+				path = path.substring(0, path.length() - 1);
+			}
+			if (!path.isEmpty()) {
+				paths.add(path);
+			}
+		}
+		if (paths.isEmpty()) {
+			return null;
+		}
+		return PathFilterGroup.createFromStrings(paths);
+	}
+
+	/**
+	 * Builds a snapshot of the current settings.
+	 *
+	 * @param settings
+	 * @return a config snapshot
+	 */
+	public static FlowDockConfig load(IStoredSettings settings) {
+		return new FlowDockConfig(settings, fingerprint(settings));
+	}
+
+	/**
+	 * Returns a new snapshot if the settings have changed since this snapshot
+	 * was built, otherwise returns this snapshot.
+	 *
+	 * @param settings
+	 * @return a config snapshot
+	 */
+	public FlowDockConfig reload(IStoredSettings settings) {
+		String current = fingerprint(settings);
+		if (current.equals(fingerprint)) {
+			return this;
+		}
+		return new FlowDockConfig(settings, current);
+	}
+
+	/**
+	 * Returns the plugin settings, and the Gitblit settings which the
+	 * snapshot depends on, as a single string which changes whenever any of
+	 * the settings change.
+	 */
+	static String fingerprint(IStoredSettings settings) {
+		Map<String, String> values = new TreeMap<String, String>();
+		for (String key : settings.getAllKeys(PREFIX)) {
+			values.put(key, settings.getString(key, ""));
+		}
+		values.put(Keys.web.canonicalUrl, settings.getString(Keys.web.canonicalUrl, ""));
+		return values.toString();
+	}
+
+	private static List<String> immutable(List<String> values) {
+		if (values == null || values.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(new ArrayList<String>(values));
+	}
+
+	/**
+	 * Returns the API token of the flow, or null if the flow has no token.
+	 *
+	 * @param flow
+	 * @return the token of the flow or null
+	 */
+	public String getFlowToken(String flow) {
+		return flowTokens.get(flow);
+	}
+
+	public String getDefaultToken() {
+		return defaultToken;
+	}
+
+	public boolean isUseProjectFlows() {
+		return useProjectFlows;
+	}
+
+	public boolean isPostPersonalRepos() {
+		return postPersonalRepos;
+	}
+
+	public boolean isPostTickets() {
+		return postTickets;
+	}
+
+	public boolean isPostTicketComments() {
+		return postTicketComments;
+	}
+
+	public boolean isPostBranches() {
+		return postBranches;
+	}
+
+	public boolean isPostTags() {
+		return postTags;
+	}
+
+	public List<String> getFixedCommitTags() {
+		return fixedCommitTags;
+	}
+
+	public List<String> getFixedTicketTags() {
+		return fixedTicketTags;
+	}
+
+	public String getTicketPayloadGenerator() {
+		return ticketPayloadGenerator;
+	}
+
+	/**
+	 * Returns true if changes of the ref should be posted according to the
+	 * global and repository include and exclude patterns.  A ref is posted if
+	 * no include patterns are defined or it matches one, and it matches no
+	 * exclude pattern.
+	 *
+	 * @param repository the repository name
+	 * @param ref the full ref name
+	 * @return true if changes of the ref should be posted
+	 */
+	public boolean isPostRef(String repository, String ref) {
+		String key = repository.toLowerCase();
+		RefMatcher repoExcludes = repositoryExcludeRefs.get(key);
+		if (excludeRefs.matches(ref) || (repoExcludes != null && repoExcludes.matches(ref))) {
+			return false;
+		}
+		RefMatcher repoIncludes = repositoryIncludeRefs.get(key);
+		if (includeRefs.isEmpty() && repoIncludes == null) {
+			return true;
+		}
+		return includeRefs.matches(ref) || (repoIncludes != null && repoIncludes.matches(ref));
+	}
+
+	/**
+	 * Returns true if pushes and changes by the user are not posted because
+	 * of the ignored users, teams or email addresses.
+	 *
+	 * @param user
+	 * @return true if the user is ignored
+	 */
+	public boolean isIgnored(UserModel user) {
+		if (user == null) {
+			return false;
+		}
+		if (user.username != null && ignoreUsers.contains(user.username.toLowerCase())) {
+			return true;
+		}
+		for (String team : ignoreTeams) {
+			if (user.isTeamMember(team)) {
+				return true;
+			}
+		}
+		if (!StringUtils.isEmpty(user.emailAddress)) {
+			for (Pattern email : ignoreEmails) {
+				if (email.matcher(user.emailAddress).matches()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the marker which excludes a commit from being posted when it
+	 * appears in the commit message.
+	 *
+	 * @return the marker or null
+	 */
+	public String getSkipMarker() {
+		return skipMarker;
+	}
+
+	/**
+	 * Returns the filter of the paths which a pushed commit must touch to be
+	 * posted.  The paths of the repository take precedence over those of the
+	 * flow, which take precedence over the global paths.
+	 *
+	 * @param repository the repository name
+	 * @param flow the flow or null for the default flow
+	 * @return a path filter or null if all commits are posted
+	 */
+	public TreeFilter getPathFilter(String repository, String flow) {
+		TreeFilter filter = scopedIncludePaths.get(repository.toLowerCase());
+		if (filter == null && flow != null) {
+			filter = scopedIncludePaths.get(flow.toLowerCase());
+		}
+		if (filter == null) {
+			filter = includePaths;
+		}
+		return filter;
+	}
+
+	/**
+	 * Returns the number of ref updates of one push above which the updates
+	 * are posted as combined messages, or 0 if pushes are never combined.
+	 *
+	 * @return the aggregation threshold
+	 */
+	public int getAggregateThreshold() {
+		return aggregateThreshold;
+	}
+
+	/**
+	 * Returns the maximum number of ref updates in one combined message.
+	 *
+	 * @return the maximum number of refs per message
+	 */
+	public int getAggregateMaxRefs() {
+		return aggregateMaxRefs;
+	}
+
+	/**
+	 * Returns the version of this snapshot.  Every snapshot has a different
+	 * version.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the builder of links to the Gitblit web pages.
+	 *
+	 * @return the link builder
+	 */
+	public LinkBuilder getLinks() {
+		return links;
+	}
+}
@@ -42,6 +42,7 @@ public class FlowDockDispatcher extends DispatchCommand {
 		if (canAdmin) {
 			register(TestCommand.class);
 			register(MessageCommand.class);
+			register(StatsCommand.class);
 		}
 	}
 
@@ -118,5 +119,25 @@ public class FlowDockDispatcher extends DispatchCommand {
 		    FlowDock.instance().sendAsync(payload);
 		}
 	}
+
+	@CommandMetaData(name = "stats", description = "Show the FlowDock cache statistics")
+	public static class StatsCommand extends SshCommand {
+
+		/**
+		 * Print the cache statistics
+		 */
+		@Override
+		public void run() throws Failure {
+			IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
+			FlowDock.init(runtimeManager);
+			MarkdownCache markdown = FlowDock.instance().getMarkdownCache();
+			if (markdown == null) {
+				stdout.println("markdown cache: disabled");
+			} else {
+				stdout.println(markdown.getStatistics());
+			}
+			stdout.println(FlowDock.instance().getUserCache().getStatistics());
+		}
+	}
 }
 
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.IOException;
+
+/**
+ * Thrown when FlowDock responds with an error status.
+ *
+ * @author James Moger
+ *
+ */
+public class FlowDockException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	final int status;
+
+	final String retryAfter;
+
+	public FlowDockException(int status, String retryAfter, String message) {
+		super(message);
+		this.status = status;
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * Returns the HTTP status of the response.
+	 *
+	 * @return the status code
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Returns the value of the Retry-After header of the response, if any.
+	 *
+	 * @return the Retry-After value or null
+	 */
+	public String getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -15,34 +15,46 @@
  */
 package com.gitblit.plugin.flowdock;
 import java.io.IOException;
-import java.text.MessageFormat;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
-import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.RawParseUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ro.fortsoft.pf4j.Extension;
 
 import com.gitblit.Constants;
-import com.gitblit.Keys;
 import com.gitblit.extensions.ReceiveHook;
 import com.gitblit.git.GitblitReceivePack;
+import com.gitblit.manager.IRepositoryManager;
 import com.gitblit.manager.IRuntimeManager;
-import com.gitblit.models.PathModel.PathChangeModel;
 import com.gitblit.models.RepositoryModel;
+import com.gitblit.models.UserModel;
 import com.gitblit.plugin.flowdock.GitPayload.Commit;
 import com.gitblit.plugin.flowdock.GitPayload.Ident;
 import com.gitblit.servlet.GitblitContext;
-import com.gitblit.utils.JGitUtils;
+import com.gitblit.utils.StringUtils;
 
 /**
  * This hook will post a message to a room when a ref is updated.
@@ -57,6 +69,16 @@ public class FlowDockReceiveHook extends ReceiveHook {
 
 	final Logger log = LoggerFactory.getLogger(getClass());
 
+	/**
+	 * The maximum number of commits listed in a combined push message.
+	 */
+	static final int MAX_AGGREGATED_COMMITS = 20;
+
+	/**
+	 * The maximum number of commits walked for a created branch or tag.
+	 */
+	static final int MAX_CREATED_REF_COMMITS = 1000;
+
 	final FlowDock flowdock;
 
 	public FlowDockReceiveHook() {
@@ -74,74 +96,366 @@ public class FlowDockReceiveHook extends ReceiveHook {
 
 	@Override
 	public void onPostReceive(GitblitReceivePack receivePack, Collection<ReceiveCommand> commands) {
+		// the push may have changed the .gitbugtraq file
+		flowdock.getBugtraqCache().invalidate(receivePack.getRepositoryModel().name);
+
 		if (!shallPost(receivePack, commands)) {
 			return;
 		}
 
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-		try {
-			for (ReceiveCommand cmd : commands) {
-				if (cmd.getRefName().startsWith(Constants.R_TAGS)) {
-			    	boolean shallPostTag = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_TAGS, true);
-			    	if (!shallPostTag) {
-			    		continue;
-			    	}
-				} else if (cmd.getRefName().startsWith(Constants.R_HEADS)) {
-			    	boolean shallPostBranch = runtimeManager.getSettings().getBoolean(Plugin.SETTING_POST_BRANCHES, true);
-			    	if (!shallPostBranch) {
-			    		continue;
-			    	}
-				} else {
-					// ignore other refs
-					continue;
-				}
+		final FlowDockConfig config = flowdock.getConfig();
+		final RepositoryModel repo = receivePack.getRepositoryModel();
+		final UserModel pusher = receivePack.getUserModel();
+		if (config.isIgnored(pusher)) {
+			log.debug("{} ignores the push of {} to {}", name, pusher.username, repo.name);
+			return;
+		}
 
-				RepositoryModel repo = receivePack.getRepositoryModel();
+		// capture the cheap facts of the push, the commits are walked and
+		// diffed in the background so the push does not wait for them
+		final Map<String, ObjectId> pushed = new HashMap<String, ObjectId>();
+		for (ReceiveCommand cmd : commands) {
+			// every pushed ref, posted or not, for the baseline of created refs
+			pushed.put(cmd.getRefName(), cmd.getOldId().copy());
+		}
+		final List<RefChange> changes = new ArrayList<RefChange>();
+		for (ReceiveCommand cmd : commands) {
+			if (!config.isPostRef(repo.name, cmd.getRefName())) {
+				// excluded by the ref patterns
+				continue;
+			}
+			if (cmd.getRefName().startsWith(Constants.R_TAGS)) {
+		    	if (!config.isPostTags()) {
+		    		continue;
+		    	}
+			} else if (cmd.getRefName().startsWith(Constants.R_HEADS)) {
+		    	if (!config.isPostBranches()) {
+		    		continue;
+		    	}
+			} else {
+				// ignore other refs
+				continue;
+			}
+			changes.add(new RefChange(cmd));
+		}
 
-				String repoUrl = getUrl(repo.name, null, null);
-				String diffUrl = getUrl(repo.name, cmd.getOldId().getName(), cmd.getNewId().getName());
+		if (changes.isEmpty()) {
+			return;
+		}
 
-				GitPayload payload = new GitPayload()
-				.pusher(receivePack.getUserModel())
-				.repository(repo.name)
-				.repoUrl(repoUrl)
-				.tags(getTags(repo))
-				.ref(cmd.getRefName())
-				.refName(Repository.shortenRefName(cmd.getRefName()))
-				.diffUrl(diffUrl)
-				.before(cmd.getOldId().getName())
-				.after(cmd.getNewId().getName());
-
-				List<RevCommit> commits = getCommits(receivePack, cmd.getOldId().name(), cmd.getNewId().name());
-				for (RevCommit commit : commits) {
-					Commit c = new Commit();
-					c.id = commit.getName();
-					c.url = getUrl(repo.name, null, commit.getName());
-					c.message = commit.getFullMessage().trim();
-
-					PersonIdent author = commit.getAuthorIdent();
-					c.author = new Ident(author.getName(), author.getEmailAddress());
-					c.timestamp = author.getWhen();
-					if (c.timestamp == null) {
-						c.timestamp = commit.getCommitterIdent().getWhen();
-					}
+		flowdock.enrich(new Runnable() {
+			@Override
+			public void run() {
+				post(config, repo, pusher, changes, pushed);
+			}
+		});
+	}
 
-					List<PathChangeModel> paths = JGitUtils.getFilesInCommit(receivePack.getRepository(), commit);
-					c.added = filter(paths, ChangeType.ADD);
-					c.modified = filter(paths, ChangeType.MODIFY);
-					c.removed = filter(paths, ChangeType.DELETE);
+	/**
+	 * Walks the new commits of the ref changes and posts the push messages.
+	 * Runs on a FlowDock enrichment thread.
+	 *
+	 * @param config
+	 * @param repo
+	 * @param pusher
+	 * @param changes the ref changes to post
+	 * @param pushed the old ids of all refs updated by the push
+	 */
+	protected void post(FlowDockConfig config, RepositoryModel repo, UserModel pusher, List<RefChange> changes,
+			Map<String, ObjectId> pushed) {
+		// claim the ref updates before any work, so that an update which is
+		// replayed or reported by more than one node is posted only once
+		List<RefChange> claimed = new ArrayList<RefChange>(changes.size());
+		for (RefChange change : changes) {
+			if (flowdock.claim(getKey(repo, change))) {
+				claimed.add(change);
+			}
+		}
+		if (claimed.isEmpty()) {
+			return;
+		}
+		changes = claimed;
 
-					payload.add(c);
+		IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
+		Repository db = repositoryManager.getRepository(repo.name);
+		if (db == null) {
+			log.warn("Repository {} is not available, not posting its push to FlowDock", repo.name);
+			release(repo, claimed);
+			return;
+		}
+		try (RevWalk walk = new RevWalk(db)) {
+			// commits reachable from the refs as they were before the push
+			// are not new for created refs
+			List<ObjectId> baseline = null;
+			for (RefChange change : changes) {
+				if (change.isCreate()) {
+					baseline = getBaseline(db, pushed);
+					break;
 				}
+			}
 
-		    	flowdock.setFlow(repo, payload);
-		    	flowdock.sendAsync(payload);
+			// all ref changes of a repository go to the same flow
+			String flow = flowdock.getFlow(repo);
+			TreeFilter paths = config.getPathFilter(repo.name, flow);
+			String skipMarker = config.getSkipMarker();
+
+			// walk each ref change once, the messages reuse the walked commits
+			RevFlag listed = walk.newFlag("listed");
+			walk.retainOnReset(listed);
+			List<Range> ranges = new ArrayList<Range>(changes.size());
+			for (RefChange change : changes) {
+				Range range = getCommits(walk, change, baseline, paths, SkipFilter.create(skipMarker), listed);
+				if (range.isSkipped()) {
+					// every new commit opted out
+					continue;
+				}
+				if (range.pruned) {
+					// new commits, but none in the watched paths
+					continue;
+				}
+				ranges.add(range);
+			}
+			if (config.getAggregateThreshold() > 0 && ranges.size() > config.getAggregateThreshold()) {
+				// one combined message per chunk of refs
+				postAggregated(walk, repo, pusher, flow, ranges, config.getAggregateMaxRefs());
+			} else {
+				for (Range range : ranges) {
+					postRef(db, walk, repo, pusher, flow, range);
+				}
 			}
 		} catch (Exception e) {
 			log.error("Failed to notify FlowDock!", e);
+			release(repo, claimed);
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Posts a push message for a single ref update.
+	 */
+	protected void postRef(Repository db, RevWalk walk, RepositoryModel repo, UserModel pusher, String flow,
+			Range range) throws IOException {
+		RefChange change = range.change;
+		String repoUrl = getUrl(repo.name, null, null);
+		String diffUrl = getUrl(repo.name, change.oldId.getName(), change.newId.getName());
+
+		GitPayload payload = new GitPayload()
+		.pusher(pusher)
+		.repository(repo.name)
+		.repoUrl(repoUrl)
+		.tags(getTags(repo))
+		.ref(change.refName)
+		.refName(Repository.shortenRefName(change.refName))
+		.diffUrl(diffUrl)
+		.before(change.oldId.getName())
+		.after(change.newId.getName());
+
+		if (change.isDelete()) {
+			// nothing to walk
+			payload.setFlow(flow);
+			flowdock.sendAsync(payload);
+			change.posted = true;
+			return;
+		}
+
+		CommitIndex index = flowdock.getCommitIndex(repo.name, flow);
+
+		// count the whole range, but only parse and diff the commits which
+		// fit in the payload
+		List<RevCommit> commits = range.commits.subList(0, Math.min(range.commits.size(), GitPayload.MAX_COMMITS));
+
+		// commits which were announced to this flow before are not diffed again
+		List<RevCommit> fresh = new ArrayList<RevCommit>(commits.size());
+		boolean [] announced = new boolean[commits.size()];
+		for (int i = 0; i < commits.size(); i++) {
+			announced[i] = index != null && index.contains(commits.get(i));
+			if (!announced[i]) {
+				fresh.add(commits.get(i));
+			}
+		}
+		List<CommitDiffer.Paths> changed = flowdock.diff(db, fresh);
+
+		int diffed = 0;
+		for (int i = 0; i < commits.size(); i++) {
+			RevCommit commit = commits.get(i);
+			walk.parseBody(commit);
+			if (announced[i]) {
+				payload.add(toAnnouncedCommit(repo, commit));
+			} else {
+				payload.add(toCommit(repo, commit, changed.get(diffed++)));
+			}
+		}
+		payload.size(range.size());
+
+		payload.setFlow(flow);
+		flowdock.sendAsync(payload);
+		change.posted = true;
+		remember(index, commits);
+	}
+
+	/**
+	 * Creates the payload commit for a commit which has already been
+	 * announced to the flow.  The commit is not diffed again.
+	 */
+	protected Commit toAnnouncedCommit(RepositoryModel repo, RevCommit commit) {
+		Commit c = toCommit(repo, commit, new CommitDiffer.Paths());
+		c.message = "(previously announced) " + commit.getShortMessage();
+		return c;
+	}
+
+	/**
+	 * Records the commits as announced to the flow.
+	 */
+	private void remember(CommitIndex index, List<RevCommit> commits) {
+		if (index == null) {
+			return;
+		}
+		for (RevCommit commit : commits) {
+			index.add(commit);
+		}
+	}
+
+	/**
+	 * Creates the payload commit.
+	 */
+	protected Commit toCommit(RepositoryModel repo, RevCommit commit, CommitDiffer.Paths paths) {
+		Commit c = new Commit();
+		c.id = commit.getName();
+		c.url = getUrl(repo.name, null, commit.getName());
+		c.message = commit.getFullMessage().trim();
+
+		PersonIdent author = commit.getAuthorIdent();
+		c.author = new Ident(author.getName(), author.getEmailAddress());
+		c.timestamp = author.getWhen();
+		if (c.timestamp == null) {
+			c.timestamp = commit.getCommitterIdent().getWhen();
+		}
+
+		c.added = paths.getAdded();
+		c.modified = paths.getModified();
+		c.removed = paths.getRemoved();
+		return c;
+	}
+
+	/**
+	 * Posts combined messages for many ref updates of one push.  Each message
+	 * summarizes up to maxRefs ref updates and lists their new commits.  A
+	 * commit which is reachable from several of the updated refs is listed
+	 * only once.
+	 */
+	protected void postAggregated(RevWalk walk, RepositoryModel repo, UserModel pusher, String flow,
+			List<Range> ranges, int maxRefs) throws IOException {
+		String repoName = StringUtils.stripDotGit(repo.name);
+		String repoUrl = getUrl(repo.name, null, null);
+		CommitIndex index = flowdock.getCommitIndex(repo.name, flow);
+
+		int chunks = (ranges.size() + maxRefs - 1) / maxRefs;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			List<Range> refs = ranges.subList(chunk * maxRefs, Math.min(ranges.size(), (chunk + 1) * maxRefs));
+
+			StringBuilder table = new StringBuilder();
+			table.append("<table><tbody>\n");
+			List<RevCommit> newCommits = new ArrayList<RevCommit>();
+			int total = 0;
+			for (Range range : refs) {
+				RefChange change = range.change;
+				String refName = Repository.shortenRefName(change.refName);
+				String action;
+				switch (change.type) {
+				case CREATE:
+					action = "created";
+					break;
+				case DELETE:
+					action = "deleted";
+					break;
+				default:
+					action = "updated";
+					break;
+				}
+				// commits of an earlier ref of this push are not listed again
+				for (RevCommit commit : range.uniqueCommits) {
+					if (newCommits.size() < MAX_AGGREGATED_COMMITS) {
+						newCommits.add(commit);
+					}
+				}
+				total += range.unique;
+				int count = range.size();
+				String link = getUrl(repo.name, change.oldId.getName(), change.newId.getName());
+				table.append(String.format("<tr><td><a href=\"%s\">%s</a></td><td>%s</td><td>%d %s</td></tr>\n",
+						link, StringUtils.escapeForHtml(refName, false), action, count, count == 1 ? "commit" : "commits"));
+			}
+			table.append("</tbody></table>\n");
+			int posted = refs.size();
+
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("<b>%s</b> pushed %d refs to <b>%s</b>\n",
+					StringUtils.escapeForHtml(pusher.getDisplayName(), false), posted, repoName));
+			sb.append(table);
+			if (!newCommits.isEmpty()) {
+				sb.append("<table><tbody>\n");
+				for (RevCommit commit : newCommits) {
+					walk.parseBody(commit);
+					String message = StringUtils.escapeForHtml(StringUtils.trimString(commit.getShortMessage(), Constants.LEN_SHORTLOG), false);
+					if (index != null && index.contains(commit)) {
+						message = "<i>(previously announced)</i> " + message;
+					}
+					sb.append(String.format("<tr><td><pre><a href=\"%s\">%s</a></pre></td><td>%s</td><td>%s</td></tr>\n",
+							getUrl(repo.name, null, commit.getName()),
+							commit.getName().substring(0, 8),
+							message,
+							StringUtils.escapeForHtml(commit.getAuthorIdent().getName(), false)));
+				}
+				sb.append("</tbody></table>\n");
+				if (total > newCommits.size()) {
+					sb.append(String.format("and %d more new commits\n", total - newCommits.size()));
+				}
+			}
+
+			String subject;
+			if (chunks == 1) {
+				subject = String.format("%s pushed %d refs to %s", pusher.getDisplayName(), posted, repoName);
+			} else {
+				subject = String.format("%s pushed %d refs to %s (%d of %d)", pusher.getDisplayName(),
+						posted, repoName, chunk + 1, chunks);
+			}
+
+			MessagePayload payload = new MessagePayload()
+				.from(pusher)
+				.subject(subject)
+				.content(sb.toString())
+				.project(StringUtils.stripDotGit(StringUtils.getLastPathElement(repo.name)))
+				.source(getSource(repo))
+				.tags(getTags(repo))
+				.link(repoUrl);
+			payload.setFlow(flow);
+			flowdock.sendAsync(payload);
+			for (Range range : refs) {
+				range.change.posted = true;
+			}
+			remember(index, newCommits);
+		}
+	}
+
+	/**
+	 * Releases the claims of the ref updates which have not been posted, so
+	 * that a replay of the push may post them.
+	 */
+	private void release(RepositoryModel repo, List<RefChange> changes) {
+		for (RefChange change : changes) {
+			if (!change.posted) {
+				flowdock.release(getKey(repo, change));
+			}
 		}
 	}
 
+	/**
+	 * Returns the dedup key of a ref update.
+	 */
+	private String getKey(RepositoryModel repo, RefChange change) {
+		return DedupWindow.key("push", repo.name, change.refName, change.oldId.getName(), change.newId.getName());
+	}
+
 	/**
 	 * Determine if the ref changes for this repository should be posted to FlowDock.
 	 *
@@ -158,9 +472,7 @@ public class FlowDockReceiveHook extends ReceiveHook {
 	}
 
 	protected List<String> getTags(RepositoryModel repository) {
-		IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-		List<String> tags = new ArrayList<String>();
-		tags.addAll(runtimeManager.getSettings().getStrings(Plugin.SETTING_FIXED_COMMIT_TAGS));
+		List<String> tags = flowdock.getConfig().getFixedCommitTags();
 		if (tags.isEmpty()) {
 			return null;
 		}
@@ -178,76 +490,310 @@ public class FlowDockReceiveHook extends ReceiveHook {
      * @return a link
      */
     protected String getUrl(String repo, String oldId, String newId) {
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-		String canonicalUrl = runtimeManager.getSettings().getString(Keys.web.canonicalUrl, "https://localhost:8443");
-
-		if (oldId == null && newId != null) {
-			// create
-			final String hrefPattern = "{0}/commit?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, newId);
-		} else if (oldId != null && newId == null) {
-			// log
-			final String hrefPattern = "{0}/log?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId);
-		} else if (oldId != null && newId != null) {
-			// update/compare
-			final String hrefPattern = "{0}/compare?r={1}&h={2}..{3}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId, newId);
-		} else if (oldId == null && newId == null) {
-			// summary page
-			final String hrefPattern = "{0}/summary?r={1}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo);
-		}
-
-		return null;
+    	return flowdock.getConfig().getLinks().getUrl(repo, oldId, newId);
+    }
+
+    /**
+     * Returns the tips of the repository as it was before the push: the old
+     * ids of the pushed refs and the ids of all other refs.  All refs of the
+     * push count, including the ones which are not posted, since the ref
+     * database already holds their new ids.
+     *
+     * @param db
+     * @param pushed the old ids of all refs updated by the push
+     * @return the ids
+     * @throws IOException
+     */
+    private List<ObjectId> getBaseline(Repository db, Map<String, ObjectId> pushed) throws IOException {
+    	List<ObjectId> ids = new ArrayList<ObjectId>();
+    	for (ObjectId oldId : pushed.values()) {
+    		if (!ObjectId.zeroId().equals(oldId)) {
+    			ids.add(oldId);
+    		}
+    	}
+    	for (Ref ref : db.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+    		if (!pushed.containsKey(ref.getName()) && ref.getObjectId() != null) {
+    			ids.add(ref.getObjectId());
+    		}
+    	}
+    	return ids;
     }
 
-    private List<RevCommit> getCommits(GitblitReceivePack receivePack, String baseId, String tipId) {
-    	List<RevCommit> list = new ArrayList<RevCommit>();
-		try (RevWalk walk = receivePack.getRevWalk()) {
+    /**
+     * Walks the commits of a ref change, newest first.  Commit bodies are not
+     * retained while walking so that a large range stays cheap; parse the
+     * body of a commit before reading its message or identities.  The whole
+     * range is counted, but only the first commits, which fit in a message,
+     * are kept.
+     *
+     * The skip filter reads the message of every commit.  With a filter the
+     * walk therefore retains the bodies it has already loaded, instead of
+     * loading each commit again for the filter, and drops them as soon as a
+     * commit turns out not to be listed.
+     *
+     * Commits which were not walked for an earlier ref of the push are
+     * marked with the listed flag and counted separately, for combined
+     * messages which list every new commit of a push once.
+     *
+     * The commits of a created ref are those which are not reachable from
+     * the baseline.  That walk is not topologically sorted, so that it can
+     * stop after {@link #MAX_CREATED_REF_COMMITS} commits.
+     *
+     * If paths are specified, commits which do not touch them are pruned by
+     * the walk and not listed.  The same applies to commits rejected by the
+     * skip filter.  An update without commits in the paths is walked again
+     * without the paths, to tell an update whose new commits are all pruned
+     * from one without new commits, e.g. a rewind.  Deleted and created refs
+     * are never pruned.
+     *
+     * @param walk
+     * @param change
+     * @param baseline the tips before the push, required for created refs
+     * @param paths the watched paths or null
+     * @param skip the skip filter or null
+     * @param listed the flag of commits walked for an earlier ref
+     * @return the commits of the range
+     */
+    private Range getCommits(RevWalk walk, RefChange change, List<ObjectId> baseline, TreeFilter paths,
+    		SkipFilter skip, RevFlag listed) {
+    	Range range = new Range(change);
+    	if (change.isDelete()) {
+    		return range;
+    	}
+		try {
 			walk.reset();
-			walk.sort(RevSort.TOPO);
-			RevCommit tip = walk.parseCommit(receivePack.getRepository().resolve(tipId));
-			RevCommit base = walk.parseCommit(receivePack.getRepository().resolve(baseId));
-			walk.markStart(tip);
-			walk.markUninteresting(base);
-			for (;;) {
+			walk.setRetainBody(skip != null);
+			if (paths == null) {
+				walk.setTreeFilter(TreeFilter.ALL);
+			} else {
+				walk.setTreeFilter(AndTreeFilter.create(paths.clone(), TreeFilter.ANY_DIFF));
+			}
+			walk.setRevFilter(skip == null ? RevFilter.ALL : skip);
+			int max = Integer.MAX_VALUE;
+			if (change.isCreate()) {
+				walk.sort(RevSort.NONE);
+				walk.markStart(walk.parseCommit(change.newId));
+				for (ObjectId id : baseline) {
+					try {
+						RevObject o = walk.peel(walk.parseAny(id));
+						if (o instanceof RevCommit) {
+							walk.markUninteresting((RevCommit) o);
+						}
+					} catch (MissingObjectException e) {
+						// pruned or broken ref, ignore
+					}
+				}
+				max = MAX_CREATED_REF_COMMITS;
+			} else {
+				walk.sort(RevSort.TOPO);
+				RevCommit tip = walk.parseCommit(change.newId);
+				RevCommit base = walk.parseCommit(change.oldId);
+				walk.markStart(tip);
+				walk.markUninteresting(base);
+			}
+			int keep = Math.max(GitPayload.MAX_COMMITS, MAX_AGGREGATED_COMMITS);
+			while (range.count < max) {
 				RevCommit c = walk.next();
 				if (c == null) {
 					break;
 				}
-				list.add(c);
+				range.count++;
+				boolean kept = false;
+				if (range.commits.size() < keep) {
+					range.commits.add(c);
+					kept = true;
+				}
+				if (!c.has(listed)) {
+					c.add(listed);
+					range.unique++;
+					if (range.uniqueCommits.size() < MAX_AGGREGATED_COMMITS) {
+						range.uniqueCommits.add(c);
+						kept = true;
+					}
+				}
+				if (!kept) {
+					c.disposeBody();
+				}
+			}
+
+			if (paths != null && range.count == 0 && !change.isCreate()) {
+				walk.reset();
+				walk.setTreeFilter(TreeFilter.ALL);
+				walk.setRevFilter(RevFilter.ALL);
+				walk.sort(RevSort.NONE);
+				walk.markStart(walk.parseCommit(change.newId));
+				walk.markUninteresting(walk.parseCommit(change.oldId));
+				range.pruned = walk.next() != null;
 			}
 		} catch (IOException e) {
 			// Should never happen, the core receive process would have
 			// identified the missing object earlier before we got control.
 			log.error("failed to get commits", e);
 		}
-		return list;
+		if (skip != null) {
+			range.skipped = skip.skipped;
+		}
+		return range;
 	}
 
-    private List<String> filter(List<PathChangeModel> paths, ChangeType ct) {
-    	List<String> list = new ArrayList<String>();
-		for (PathChangeModel path : paths) {
-			switch (path.changeType) {
-			case ADD:
-			case COPY:
-				if (ChangeType.ADD == ct) {
-					list.add(path.path);
-				}
-				break;
-			case DELETE:
-				if (ChangeType.DELETE == ct) {
-					list.add(path.path);
-				}
-				break;
-			default:
-				if (ChangeType.MODIFY == ct) {
-					list.add(path.path);
+	/**
+	 * Rejects the commits whose message contains the skip marker, ignoring
+	 * case.  The marker is searched in the raw buffer which the walk has
+	 * already parsed, so no objects are loaded for it as long as the walk
+	 * retains commit bodies.
+	 */
+	static class SkipFilter extends RevFilter {
+
+		final byte [] marker;
+
+		int skipped;
+
+		SkipFilter(byte [] marker) {
+			this.marker = marker;
+		}
+
+		/**
+		 * Creates a filter for the marker.
+		 *
+		 * @param marker
+		 * @return a filter or null if there is no marker
+		 */
+		static SkipFilter create(String marker) {
+			if (StringUtils.isEmpty(marker)) {
+				return null;
+			}
+			return new SkipFilter(marker.toLowerCase(Locale.ENGLISH).getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public boolean include(RevWalk walker, RevCommit c) {
+			byte [] raw = c.getRawBuffer();
+			if (raw != null && indexOf(raw, RawParseUtils.commitMessage(raw, 0), marker) >= 0) {
+				skipped++;
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public boolean requiresCommitBody() {
+			return true;
+		}
+
+		@Override
+		public RevFilter clone() {
+			return new SkipFilter(marker);
+		}
+
+		private static int indexOf(byte [] raw, int from, byte [] lower) {
+			if (from < 0) {
+				return -1;
+			}
+			outer: for (int i = from; i <= raw.length - lower.length; i++) {
+				for (int j = 0; j < lower.length; j++) {
+					byte b = raw[i + j];
+					if (b >= 'A' && b <= 'Z') {
+						b += 'a' - 'A';
+					}
+					if (b != lower[j]) {
+						continue outer;
+					}
 				}
-				break;
+				return i;
 			}
+			return -1;
 		}
-		return list;
-    }
+	}
+
+	/**
+	 * The walked commits of a ref update.
+	 */
+	static class Range {
+
+		final RefChange change;
+
+		/**
+		 * The first commits of the range, as many as a message lists.
+		 */
+		final List<RevCommit> commits;
+
+		/**
+		 * The first commits of the range which were not walked for an
+		 * earlier ref of the push.
+		 */
+		final List<RevCommit> uniqueCommits;
+
+		/**
+		 * The number of commits of the range.
+		 */
+		int count;
+
+		/**
+		 * The number of commits which were not walked for an earlier ref.
+		 */
+		int unique;
+
+		/**
+		 * The number of commits rejected by the skip filter.
+		 */
+		int skipped;
+
+		/**
+		 * True if the ref update has new commits, but none of them touch the
+		 * watched paths.
+		 */
+		boolean pruned;
+
+		Range(RefChange change) {
+			this.change = change;
+			this.commits = new ArrayList<RevCommit>();
+			this.uniqueCommits = new ArrayList<RevCommit>();
+		}
+
+		int size() {
+			return count;
+		}
+
+		/**
+		 * Returns true if the ref update had new commits, but all of them
+		 * opted out with the skip marker.
+		 */
+		boolean isSkipped() {
+			return count == 0 && skipped > 0;
+		}
+	}
+
+	/**
+	 * The facts of a ref update which are captured on the push thread.
+	 */
+	static class RefChange {
+
+		final String refName;
+
+		final ObjectId oldId;
+
+		final ObjectId newId;
+
+		final ReceiveCommand.Type type;
+
+		/**
+		 * True once the message of the update has been queued.
+		 */
+		boolean posted;
+
+		RefChange(ReceiveCommand cmd) {
+			this.refName = cmd.getRefName();
+			this.oldId = cmd.getOldId().copy();
+			this.newId = cmd.getNewId().copy();
+			this.type = cmd.getType();
+		}
+
+		boolean isCreate() {
+			return ObjectId.zeroId().equals(oldId);
+		}
+
+		boolean isDelete() {
+			return ObjectId.zeroId().equals(newId);
+		}
+	}
 }
\ No newline at end of file
@@ -14,12 +14,15 @@
  * limitations under the License.
  */
 package com.gitblit.plugin.flowdock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ro.fortsoft.pf4j.Extension;
 
-import com.gitblit.IStoredSettings;
 import com.gitblit.extensions.TicketHook;
 import com.gitblit.manager.IRepositoryManager;
 import com.gitblit.manager.IRuntimeManager;
@@ -27,7 +30,6 @@ import com.gitblit.models.RepositoryModel;
 import com.gitblit.models.TicketModel;
 import com.gitblit.models.TicketModel.Change;
 import com.gitblit.servlet.GitblitContext;
-import com.gitblit.utils.StringUtils;
 
 /**
  * The ticket hook will post a message to a flow when a ticket is created or updated.
@@ -44,7 +46,12 @@ public class FlowDockTicketHook extends TicketHook {
 
 	final FlowDock flowdock;
 
-	final IStoredSettings settings;
+	final TicketDebouncer.Listener settled = new TicketDebouncer.Listener() {
+		@Override
+		public void onSettled(TicketModel ticket, Change change, List<Change> updates) {
+			postUpdate(ticket, change, updates);
+		}
+	};
 
 	public FlowDockTicketHook() {
 		super();
@@ -52,49 +59,112 @@ public class FlowDockTicketHook extends TicketHook {
 		IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
 		FlowDock.init(runtimeManager);
     	flowdock = FlowDock.instance();
-    	settings = runtimeManager.getSettings();
 	}
 
     @Override
-    public void onNewTicket(TicketModel ticket) {
-    	if (!shallPost(ticket, ticket.changes.get(0))) {
+    public void onNewTicket(final TicketModel ticket) {
+    	final Change change = ticket.changes.get(0);
+    	if (!shallPost(ticket, change)) {
 			return;
 		}
 
-    	TicketPayloadGenerator endpoint = getGenerator();
-    	Payload payload = endpoint.generatePayload(ticket);
-
-    	post(ticket, payload);
+    	// the payload is built off the thread which saved the ticket
+    	flowdock.enrich(new Runnable() {
+			@Override
+			public void run() {
+				String key = getKey(ticket, change);
+				if (!flowdock.claim(key)) {
+					return;
+				}
+				try {
+					TicketPayloadGenerator endpoint = getGenerator();
+					Payload payload = endpoint.generatePayload(ticket);
+
+					post(ticket, payload);
+				} catch (Exception e) {
+					flowdock.release(key);
+					log.error("Failed to notify FlowDock!", e);
+				}
+			}
+		});
     }
 
     @Override
-    public void onUpdateTicket(TicketModel ticket, Change change) {
+    public void onUpdateTicket(final TicketModel ticket, final Change change) {
+    	if (!flowdock.getConfig().isPostTickets()) {
+    		return;
+    	}
+    	if (!flowdock.debounce(ticket, change, settled)) {
+    		// the payload is built off the thread which saved the ticket
+    		flowdock.enrich(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						postUpdate(ticket, change, Collections.singletonList(change));
+					} catch (Exception e) {
+						log.error("Failed to notify FlowDock!", e);
+					}
+				}
+			});
+    	}
+    }
+
+    /**
+     * Posts a ticket update, which may be the merge of several updates.  The
+     * update is not posted if all of the merged updates have already been
+     * claimed.  Runs on the debouncer or an enrichment thread.
+     *
+     * @param ticket
+     * @param change
+     * @param updates the merged updates
+     */
+    protected void postUpdate(TicketModel ticket, Change change, List<Change> updates) {
     	if (!shallPost(ticket, change)) {
 			return;
 		}
+    	List<String> claimed = new ArrayList<String>(updates.size());
+    	for (Change update : updates) {
+    		String key = getKey(ticket, update);
+    		if (flowdock.claim(key)) {
+    			claimed.add(key);
+    		}
+    	}
+    	if (claimed.isEmpty()) {
+    		return;
+    	}
 
-    	TicketPayloadGenerator endpoint = getGenerator();
-    	Payload payload = endpoint.generatePayload(ticket, change);
+    	try {
+    		TicketPayloadGenerator endpoint = getGenerator();
+    		Payload payload = endpoint.generatePayload(ticket, change);
 
-    	post(ticket, payload);
+    		post(ticket, payload);
+    	} catch (RuntimeException e) {
+    		for (String key : claimed) {
+    			flowdock.release(key);
+    		}
+    		throw e;
+    	}
     }
 
     /**
-     * Returns an instance of the payload generator.
+     * Returns the shared instance of the payload generator.
      *
      * @return a payload generator
      */
     private TicketPayloadGenerator getGenerator() {
-    	String defaultClazz = TicketEmailGenerator.class.getName();
-    	String clazz = settings.getString(Plugin.SETTING_TICKET_PAYLOAD_GENERATOR, defaultClazz);
-    	if (StringUtils.isEmpty(clazz)) {
-    		clazz = defaultClazz;
-    	}
-    	try {
-    		return (TicketPayloadGenerator) Class.forName(clazz).newInstance();
-    	} catch (Throwable t) {
-    		return new TicketEmailGenerator();
-    	}
+    	return flowdock.getTicketGenerator();
+    }
+
+    /**
+     * Returns the dedup key of a ticket change.
+     *
+     * @param ticket
+     * @param change
+     * @return the key
+     */
+    protected String getKey(TicketModel ticket, Change change) {
+    	String date = change.date == null ? null : String.valueOf(change.date.getTime());
+    	return DedupWindow.key("ticket", ticket.repository, String.valueOf(ticket.number), date);
     }
 
     /**
@@ -104,7 +174,8 @@ public class FlowDockTicketHook extends TicketHook {
      * @return true if the ticket should be posted to a FlowDock flow
      */
     protected boolean shallPost(TicketModel ticket, Change change) {
-    	boolean shallPostTicket = settings.getBoolean(Plugin.SETTING_POST_TICKETS, true);
+    	FlowDockConfig config = flowdock.getConfig();
+    	boolean shallPostTicket = config.isPostTickets();
 
     	if (shallPostTicket) {
     		if (change.hasReview()) {
@@ -115,7 +186,7 @@ public class FlowDockTicketHook extends TicketHook {
     			shallPostTicket = true;
     		} else if (change.isStatusChange()) {
     			shallPostTicket = true;
-    		} else if (change.hasComment() && settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true)) {
+    		} else if (change.hasComment() && config.isPostTicketComments()) {
     			shallPostTicket = true;
     		} else {
     			shallPostTicket = false;
@@ -34,6 +34,11 @@ public class GitPayload extends Payload implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * The maximum number of commits included in the payload.
+	 */
+	public static final int MAX_COMMITS = 20;
+
 	private Ident sender;
 
 	@SerializedName("ref_name")
@@ -122,13 +127,56 @@ public class GitPayload extends Payload implements Serializable {
 	}
 
 	public GitPayload add(Commit commit) {
-		if (commits.size() < 20) {
+		if (commits.size() < MAX_COMMITS) {
 			this.commits.add(commit);
 		}
 		this.size++;
 		return this;
 	}
 
+	/**
+	 * Sets the total number of pushed commits, which may be larger than the
+	 * number of commits included in the payload.
+	 *
+	 * @param size
+	 * @return this payload
+	 */
+	public GitPayload size(int size) {
+		this.size = size;
+		return this;
+	}
+
+	void writeJson(JsonOutput out) {
+		out.beginObject();
+		if (sender != null) {
+			out.name("sender");
+			sender.writeJson(out);
+		}
+		out.field("ref_name", refName);
+		if (repository != null) {
+			out.name("repository");
+			repository.writeJson(out);
+		}
+		if (commits != null) {
+			out.name("commits").beginArray();
+			for (Commit commit : commits) {
+				if (commit == null) {
+					out.nullValue();
+				} else {
+					commit.writeJson(out);
+				}
+			}
+			out.endArray();
+		}
+		out.field("size", size);
+		out.field("before", before);
+		out.field("after", after);
+		out.field("ref", ref);
+		out.field("compare", compareUrl);
+		writeTags(out);
+		out.endObject();
+	}
+
 	public String getPusherName() {
 		return sender.name;
 	}
@@ -164,6 +212,22 @@ public class GitPayload extends Payload implements Serializable {
 		List<String> modified;
 
 		List<String> removed;
+
+		void writeJson(JsonOutput out) {
+			out.beginObject();
+			out.field("url", url);
+			out.field("id", id);
+			if (author != null) {
+				out.name("author");
+				author.writeJson(out);
+			}
+			out.field("timestamp", timestamp);
+			out.field("message", message);
+			out.field("added", added);
+			out.field("modified", modified);
+			out.field("removed", removed);
+			out.endObject();
+		}
 	}
 
 	public static class Repo implements Serializable {
@@ -174,6 +238,12 @@ public class GitPayload extends Payload implements Serializable {
 
 		String name;
 
+		void writeJson(JsonOutput out) {
+			out.beginObject();
+			out.field("url", url);
+			out.field("name", name);
+			out.endObject();
+		}
 	}
 
 	public static class Ident implements Serializable {
@@ -191,5 +261,12 @@ public class GitPayload extends Payload implements Serializable {
 			this.name = name;
 			this.email = email;
 		}
+
+		void writeJson(JsonOutput out) {
+			out.beginObject();
+			out.field("name", name);
+			out.field("email", email);
+			out.endObject();
+		}
 	}
 }
@@ -17,30 +17,33 @@ import com.google.gson.JsonSerializer;
 import com.google.gson.JsonSyntaxException;
 
 public class GmtDateTypeAdapter implements JsonSerializer<Date>, JsonDeserializer<Date> {
-		private final DateFormat dateFormat;
+
+		// SimpleDateFormat is not thread-safe, each thread gets its own
+		private static final ThreadLocal<DateFormat> DATE_FORMAT = new ThreadLocal<DateFormat>() {
+			@Override
+			protected DateFormat initialValue() {
+				DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+				dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+				return dateFormat;
+			}
+		};
 
 		public GmtDateTypeAdapter() {
-			dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
-			dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
 		}
 
 		@Override
-		public synchronized JsonElement serialize(Date date, Type type,
+		public JsonElement serialize(Date date, Type type,
 				JsonSerializationContext jsonSerializationContext) {
-			synchronized (dateFormat) {
-				String dateFormatAsString = dateFormat.format(date);
-				return new JsonPrimitive(dateFormatAsString);
-			}
+			String dateFormatAsString = DATE_FORMAT.get().format(date);
+			return new JsonPrimitive(dateFormatAsString);
 		}
 
 		@Override
-		public synchronized Date deserialize(JsonElement jsonElement, Type type,
+		public Date deserialize(JsonElement jsonElement, Type type,
 				JsonDeserializationContext jsonDeserializationContext) {
 			try {
-				synchronized (dateFormat) {
-					Date date = dateFormat.parse(jsonElement.getAsString());
-					return new Date((date.getTime() / 1000) * 1000);
-				}
+				Date date = DATE_FORMAT.get().parse(jsonElement.getAsString());
+				return new Date((date.getTime() / 1000) * 1000);
 			} catch (ParseException e) {
 				throw new JsonSyntaxException(jsonElement.getAsString(), e);
 			}
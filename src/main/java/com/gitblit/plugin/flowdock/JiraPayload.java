@@ -20,12 +20,9 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.gitblit.manager.IUserManager;
 import com.gitblit.models.TicketModel;
 import com.gitblit.models.TicketModel.Change;
 import com.gitblit.models.TicketModel.Field;
-import com.gitblit.models.UserModel;
-import com.gitblit.servlet.GitblitContext;
 import com.gitblit.utils.StringUtils;
 import com.google.gson.annotations.SerializedName;
 
@@ -106,7 +103,46 @@ public class JiraPayload extends Payload implements Serializable {
 		return false;
 	}
 
+	void writeJson(JsonOutput out) {
+		out.beginObject();
+		out.field("issue_key", id);
+		out.field("issue_summary", title);
+		out.field("issue_description", description);
+		out.field("issue_status", status);
+		out.field("issue_resolution", resolution);
+		out.field("issue_type", type);
+		out.field("project_name", project);
+		out.field("issue_votes", votes);
+		out.field("issue_reporter_name", createdByName);
+		out.field("issue_reporter_email", createdByEmail);
+		out.field("issue_assignee_name", responsibleName);
+		out.field("issue_assignee_email", responsibleEmail);
+		out.field("user_name", updaterName);
+		out.field("user_email", updaterEmail);
+		out.field("event_type", updateType);
+		out.field("comment_body", comment);
+		out.field("issue_url", url);
+		out.field("project_url", projectUrl);
+		if (changes != null) {
+			out.name("issue_changelog").beginArray();
+			for (Changelog change : changes) {
+				if (change == null) {
+					out.nullValue();
+				} else {
+					change.writeJson(out);
+				}
+			}
+			out.endArray();
+		}
+		writeTags(out);
+		out.endObject();
+	}
+
 	public JiraPayload ticket(TicketModel ticket) {
+		return ticket(ticket, FlowDock.instance().getUserCache().lookup());
+	}
+
+	public JiraPayload ticket(TicketModel ticket, UserCache.Lookup users) {
 		id = String.valueOf(ticket.number);
 		title = ticket.title;
 		description = ticket.body;
@@ -118,9 +154,7 @@ public class JiraPayload extends Payload implements Serializable {
 		project = StringUtils.stripDotGit(ticket.repository);
 		votes = String.valueOf(ticket.getVoters().size());
 
-		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-
-		UserModel createdBy = userManager.getUserModel(ticket.createdBy);
+		UserCache.Identity createdBy = users.get(ticket.createdBy);
 		if (createdBy != null) {
 			createdByName = createdBy.getDisplayName();
 			createdByEmail = createdBy.emailAddress;
@@ -129,19 +163,18 @@ public class JiraPayload extends Payload implements Serializable {
 		}
 
 		if (!StringUtils.isEmpty(ticket.responsible)) {
-			UserModel responsible = userManager.getUserModel(ticket.responsible);
-			if (responsible != null) {
-				responsibleName = responsible.getDisplayName();
-				responsibleEmail = responsible.emailAddress;
-			} else {
-				responsibleName = ticket.responsible;
-			}
+			// never null for a username, unknown users fall back to the username
+			UserCache.Identity responsible = users.get(ticket.responsible);
+			responsibleName = responsible.getDisplayName();
+			responsibleEmail = responsible.emailAddress;
 		}
 
 		Change lastChange = ticket.changes.get(ticket.changes.size() - 1);
-		UserModel changedBy = userManager.getUserModel(lastChange.author);
-		updaterName = changedBy.getDisplayName();
-		updaterEmail = changedBy.emailAddress;
+		UserCache.Identity changedBy = users.get(lastChange.author);
+		if (changedBy != null) {
+			updaterName = changedBy.getDisplayName();
+			updaterEmail = changedBy.emailAddress;
+		}
 
 		if (lastChange.hasComment()) {
 			comment = lastChange.comment.text;
@@ -223,5 +256,13 @@ public class JiraPayload extends Payload implements Serializable {
 
 		@SerializedName("new_value")
 		String newValue;
+
+		void writeJson(JsonOutput out) {
+			out.beginObject();
+			out.field("field", field);
+			out.field("old_value", oldValue);
+			out.field("new_value", newValue);
+			out.endObject();
+		}
 	}
 }
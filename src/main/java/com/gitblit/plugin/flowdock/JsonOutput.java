@@ -0,0 +1,364 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Minimal streaming JSON writer which encodes UTF-8 directly into a reusable,
+ * per-thread buffer.
+ *
+ * The output matches Gson's default configuration: null fields are omitted
+ * and strings are escaped HTML-safe.  Dates are written in UTC as
+ * yyyy-MM-dd'T'HH:mm:ss'Z' without a shared formatter.
+ *
+ * @author James Moger
+ *
+ */
+final class JsonOutput {
+
+	private static final int INITIAL_CAPACITY = 4096;
+
+	private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+	private static final byte [] HEX = "0123456789abcdef".getBytes();
+
+	private static final byte [][] ESCAPES = new byte[128][];
+
+	static {
+		for (int i = 0; i < 0x20; i++) {
+			ESCAPES[i] = String.format("\\u%04x", i).getBytes();
+		}
+		ESCAPES['"'] = "\\\"".getBytes();
+		ESCAPES['\\'] = "\\\\".getBytes();
+		ESCAPES['\t'] = "\\t".getBytes();
+		ESCAPES['\b'] = "\\b".getBytes();
+		ESCAPES['\n'] = "\\n".getBytes();
+		ESCAPES['\r'] = "\\r".getBytes();
+		ESCAPES['\f'] = "\\f".getBytes();
+		// html-safe
+		ESCAPES['<'] = "\\u003c".getBytes();
+		ESCAPES['>'] = "\\u003e".getBytes();
+		ESCAPES['&'] = "\\u0026".getBytes();
+		ESCAPES['='] = "\\u003d".getBytes();
+		ESCAPES['\''] = "\\u0027".getBytes();
+	}
+
+	private static final ThreadLocal<JsonOutput> CACHE = new ThreadLocal<JsonOutput>() {
+		@Override
+		protected JsonOutput initialValue() {
+			return new JsonOutput();
+		}
+	};
+
+	private static final ThreadLocal<SimpleDateFormat> FALLBACK_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+			df.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return df;
+		}
+	};
+
+	private byte [] buf;
+
+	private int count;
+
+	private boolean [] first;
+
+	private int depth;
+
+	private JsonOutput() {
+		buf = new byte[INITIAL_CAPACITY];
+		first = new boolean[8];
+	}
+
+	/**
+	 * Returns the empty writer of the current thread.
+	 *
+	 * @return a writer
+	 */
+	static JsonOutput get() {
+		JsonOutput out = CACHE.get();
+		out.count = 0;
+		out.depth = 0;
+		return out;
+	}
+
+	/**
+	 * Returns a copy of the written bytes and releases an oversized buffer.
+	 *
+	 * @return the UTF-8 encoded JSON
+	 */
+	byte [] toByteArray() {
+		byte [] bytes = Arrays.copyOf(buf, count);
+		if (buf.length > MAX_RETAINED_CAPACITY) {
+			buf = new byte[INITIAL_CAPACITY];
+		}
+		count = 0;
+		return bytes;
+	}
+
+	JsonOutput beginObject() {
+		separate();
+		write('{');
+		push();
+		return this;
+	}
+
+	JsonOutput endObject() {
+		depth--;
+		write('}');
+		return this;
+	}
+
+	JsonOutput beginArray() {
+		separate();
+		write('[');
+		push();
+		return this;
+	}
+
+	JsonOutput endArray() {
+		depth--;
+		write(']');
+		return this;
+	}
+
+	JsonOutput name(String name) {
+		separate();
+		string(name);
+		write(':');
+		// the value follows the name without a separator
+		first[depth - 1] = true;
+		return this;
+	}
+
+	JsonOutput value(String value) {
+		separate();
+		if (value == null) {
+			writeAscii("null");
+		} else {
+			string(value);
+		}
+		return this;
+	}
+
+	JsonOutput value(long value) {
+		separate();
+		writeAscii(Long.toString(value));
+		return this;
+	}
+
+	JsonOutput value(Date date) {
+		separate();
+		if (date == null) {
+			writeAscii("null");
+		} else {
+			write('"');
+			date(date);
+			write('"');
+		}
+		return this;
+	}
+
+	JsonOutput value(List<String> values) {
+		beginArray();
+		for (String value : values) {
+			value(value);
+		}
+		return endArray();
+	}
+
+	JsonOutput nullValue() {
+		separate();
+		writeAscii("null");
+		return this;
+	}
+
+	JsonOutput field(String name, String value) {
+		if (value != null) {
+			name(name).value(value);
+		}
+		return this;
+	}
+
+	JsonOutput field(String name, long value) {
+		return name(name).value(value);
+	}
+
+	JsonOutput field(String name, Date value) {
+		if (value != null) {
+			name(name).value(value);
+		}
+		return this;
+	}
+
+	JsonOutput field(String name, List<String> values) {
+		if (values != null) {
+			name(name).value(values);
+		}
+		return this;
+	}
+
+	private void push() {
+		if (depth == first.length) {
+			first = Arrays.copyOf(first, depth * 2);
+		}
+		first[depth++] = true;
+	}
+
+	private void separate() {
+		if (depth == 0) {
+			return;
+		}
+		if (first[depth - 1]) {
+			first[depth - 1] = false;
+		} else {
+			write(',');
+		}
+	}
+
+	private void string(String value) {
+		write('"');
+		int len = value.length();
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				byte [] escape = ESCAPES[c];
+				if (escape == null) {
+					write(c);
+				} else {
+					write(escape);
+				}
+			} else if (c == 0x2028 || c == 0x2029) {
+				write('\\');
+				write('u');
+				write(HEX[(c >> 12) & 0xf]);
+				write(HEX[(c >> 8) & 0xf]);
+				write(HEX[(c >> 4) & 0xf]);
+				write(HEX[c & 0xf]);
+			} else if (c < 0x800) {
+				write(0xc0 | (c >> 6));
+				write(0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				write(0xf0 | (cp >> 18));
+				write(0x80 | ((cp >> 12) & 0x3f));
+				write(0x80 | ((cp >> 6) & 0x3f));
+				write(0x80 | (cp & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate, replaced like String.getBytes
+				write('?');
+			} else {
+				write(0xe0 | (c >> 12));
+				write(0x80 | ((c >> 6) & 0x3f));
+				write(0x80 | (c & 0x3f));
+			}
+		}
+		write('"');
+	}
+
+	/**
+	 * Writes the date as yyyy-MM-dd'T'HH:mm:ss'Z' in UTC.
+	 */
+	private void date(Date date) {
+		long millis = date.getTime();
+		long days = floorDiv(millis, 86400000L);
+		int secondOfDay = (int) (floorMod(millis, 86400000L) / 1000);
+
+		// civil date from days since the epoch, proleptic Gregorian
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+		if (year < 1583 || year > 9999) {
+			// outside of the Gregorian range of SimpleDateFormat
+			writeAscii(FALLBACK_FORMAT.get().format(date));
+			return;
+		}
+
+		digits((int) year, 4);
+		write('-');
+		digits(month, 2);
+		write('-');
+		digits(day, 2);
+		write('T');
+		digits(secondOfDay / 3600, 2);
+		write(':');
+		digits((secondOfDay / 60) % 60, 2);
+		write(':');
+		digits(secondOfDay % 60, 2);
+		write('Z');
+	}
+
+	private void digits(int value, int width) {
+		ensure(width);
+		for (int i = width - 1; i >= 0; i--) {
+			buf[count + i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		count += width;
+	}
+
+	private static long floorDiv(long x, long y) {
+		long r = x / y;
+		if ((x % y != 0) && ((x ^ y) < 0)) {
+			r--;
+		}
+		return r;
+	}
+
+	private static long floorMod(long x, long y) {
+		return x - floorDiv(x, y) * y;
+	}
+
+	private void writeAscii(String value) {
+		int len = value.length();
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			buf[count++] = (byte) value.charAt(i);
+		}
+	}
+
+	private void write(byte [] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buf, count, bytes.length);
+		count += bytes.length;
+	}
+
+	private void write(int b) {
+		ensure(1);
+		buf[count++] = (byte) b;
+	}
+
+	private void ensure(int n) {
+		if (count + n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Builds links to the Gitblit web pages of a repository.
+ *
+ * The canonical url and the page prefixes are prepared once, and the
+ * encoded repository names are cached, so a link is built by appending a
+ * few strings to a presized builder.  A builder belongs to a config
+ * snapshot and is replaced when the canonical url changes.
+ *
+ * @author James Moger
+ *
+ */
+public final class LinkBuilder {
+
+	/**
+	 * The maximum number of cached repository names.
+	 */
+	static final int MAX_CACHED_NAMES = 1000;
+
+	final String canonicalUrl;
+
+	final String commitPrefix;
+
+	final String logPrefix;
+
+	final String comparePrefix;
+
+	final String summaryPrefix;
+
+	final ConcurrentMap<String, String> encodedNames;
+
+	public LinkBuilder(String canonicalUrl) {
+		String url = canonicalUrl;
+		while (url.endsWith("/")) {
+			url = url.substring(0, url.length() - 1);
+		}
+		this.canonicalUrl = url;
+		this.commitPrefix = url + "/commit?r=";
+		this.logPrefix = url + "/log?r=";
+		this.comparePrefix = url + "/compare?r=";
+		this.summaryPrefix = url + "/summary?r=";
+		this.encodedNames = new ConcurrentHashMap<String, String>();
+	}
+
+	public String getCanonicalUrl() {
+		return canonicalUrl;
+	}
+
+	/**
+	 * Returns a link appropriate for the push.
+	 *
+	 * If both new and old ids are null, the summary page link is returned.
+	 *
+	 * @param repo
+	 * @param oldId
+	 * @param newId
+	 * @return a link
+	 */
+	public String getUrl(String repo, String oldId, String newId) {
+		if (oldId == null && newId != null) {
+			return commit(repo, newId);
+		} else if (oldId != null && newId == null) {
+			return log(repo, oldId);
+		} else if (oldId != null && newId != null) {
+			return compare(repo, oldId, newId);
+		}
+		return summary(repo);
+	}
+
+	/**
+	 * Returns the link to the commit page.
+	 *
+	 * @param repo
+	 * @param id
+	 * @return a link
+	 */
+	public String commit(String repo, String id) {
+		return build(commitPrefix, repo, id, null);
+	}
+
+	/**
+	 * Returns the link to the log page, starting at the commit.
+	 *
+	 * @param repo
+	 * @param id
+	 * @return a link
+	 */
+	public String log(String repo, String id) {
+		return build(logPrefix, repo, id, null);
+	}
+
+	/**
+	 * Returns the link to the compare page of the two commits.
+	 *
+	 * @param repo
+	 * @param oldId
+	 * @param newId
+	 * @return a link
+	 */
+	public String compare(String repo, String oldId, String newId) {
+		return build(comparePrefix, repo, oldId, newId);
+	}
+
+	/**
+	 * Returns the link to the summary page.
+	 *
+	 * @param repo
+	 * @return a link
+	 */
+	public String summary(String repo) {
+		return build(summaryPrefix, repo, null, null);
+	}
+
+	private String build(String prefix, String repo, String id, String toId) {
+		String name = encode(repo);
+		int length = prefix.length() + name.length();
+		if (id != null) {
+			length += 3 + id.length();
+		}
+		if (toId != null) {
+			length += 2 + toId.length();
+		}
+		StringBuilder sb = new StringBuilder(length);
+		sb.append(prefix).append(name);
+		if (id != null) {
+			sb.append("&h=").append(id);
+		}
+		if (toId != null) {
+			sb.append("..").append(toId);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Encodes a repository name as a query parameter value.  The path
+	 * separators are kept since they are valid in a query.
+	 *
+	 * @param repo
+	 * @return the encoded name
+	 */
+	String encode(String repo) {
+		String encoded = encodedNames.get(repo);
+		if (encoded != null) {
+			return encoded;
+		}
+		try {
+			encoded = URLEncoder.encode(repo, "UTF-8").replace("+", "%20").replace("%2F", "/");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+		if (encodedNames.size() >= MAX_CACHED_NAMES) {
+			encodedNames.clear();
+		}
+		encodedNames.put(repo, encoded);
+		return encoded;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of rendered ticket markdown, bounded by the memory of the cached
+ * html.
+ *
+ * Entries are keyed by the repository, a hash of the markdown and the
+ * version of the settings it was rendered with, so changed content or
+ * settings never hit a stale entry; the stale entry simply ages out.  The
+ * least recently used entries are evicted when the cache is full.
+ *
+ * @author James Moger
+ *
+ */
+public class MarkdownCache {
+
+	/**
+	 * The approximate memory of an entry besides its strings.
+	 */
+	static final int ENTRY_OVERHEAD = 96;
+
+	final long capacity;
+
+	final LinkedHashMap<String, String> entries;
+
+	private long size;
+
+	private long hits;
+
+	private long misses;
+
+	private long evictions;
+
+	/**
+	 * @param capacity the maximum memory of the cached entries in bytes
+	 */
+	public MarkdownCache(long capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+	}
+
+	/**
+	 * Returns the key of rendered markdown, the SHA-1 of its inputs.
+	 *
+	 * @param repository
+	 * @param markdown
+	 * @param version the version of the settings which affect rendering
+	 * @return a key
+	 */
+	public static String key(String repository, String markdown, String version) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for (String part : new String [] { repository, markdown, version }) {
+				md.update(part.getBytes(StandardCharsets.UTF_8));
+				md.update((byte) 0);
+			}
+			byte [] digest = md.digest();
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the cached html or null.
+	 *
+	 * @param key
+	 * @return the html or null
+	 */
+	public synchronized String get(String key) {
+		String html = entries.get(key);
+		if (html == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return html;
+	}
+
+	/**
+	 * Caches rendered html.  Html which is larger than a quarter of the
+	 * cache is not cached.
+	 *
+	 * @param key
+	 * @param html
+	 */
+	public synchronized void put(String key, String html) {
+		long bytes = sizeOf(key, html);
+		if (bytes > capacity / 4) {
+			return;
+		}
+		String previous = entries.put(key, html);
+		if (previous != null) {
+			size -= sizeOf(key, previous);
+		}
+		size += bytes;
+		Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator();
+		while (size > capacity && iterator.hasNext()) {
+			Map.Entry<String, String> eldest = iterator.next();
+			size -= sizeOf(eldest.getKey(), eldest.getValue());
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	private static long sizeOf(String key, String html) {
+		return ENTRY_OVERHEAD + 2L * (key.length() + html.length());
+	}
+
+	/**
+	 * Returns the cache statistics, for administrators.
+	 *
+	 * @return the statistics
+	 */
+	public synchronized String getStatistics() {
+		long lookups = hits + misses;
+		return String.format("markdown cache: %d entries, %d of %d KB, %d hits, %d misses (%d%% hit rate), %d evictions",
+				entries.size(), size / 1024, capacity / 1024, hits, misses,
+				lookups == 0 ? 0 : hits * 100 / lookups, evictions);
+	}
+}
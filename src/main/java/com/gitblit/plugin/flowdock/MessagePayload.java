@@ -61,6 +61,20 @@ public class MessagePayload extends Payload  implements Serializable {
 		return false;
 	}
 
+	void writeJson(JsonOutput out) {
+		out.beginObject();
+		out.field("source", source);
+		out.field("from_name", fromName);
+		out.field("from_address", fromAddress);
+		out.field("subject", subject);
+		out.field("content", content);
+		out.field("reply_to", replyTo);
+		out.field("project", project);
+		out.field("link", link);
+		writeTags(out);
+		out.endObject();
+	}
+
 	public MessagePayload subject(String subject) {
 		setSubject(subject);
 		return this;
@@ -75,6 +89,10 @@ public class MessagePayload extends Payload  implements Serializable {
 		return from(user.getDisplayName(), user.emailAddress);
 	}
 
+	public MessagePayload from(UserCache.Identity user) {
+		return from(user.getDisplayName(), user.emailAddress);
+	}
+
 	public MessagePayload from(String name, String address) {
 		setFromName(name);
 		setFromAddress(address);
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable, append-only journal of envelopes which have not yet been delivered.
+ *
+ * The journal is split into numbered segment files.  Each envelope is
+ * appended as a payload record and, once delivered, an ack record is
+ * appended for its id.  Appends and acks are written by a single thread in
+ * batches with one fsync per batch.  A segment is deleted once it is no longer
+ * the active segment and every payload in it and in all older segments has
+ * been acknowledged.
+ *
+ * Envelopes which can not be delivered now, but should be tried again, are
+ * moved to a separate dead letter file and acknowledged in the journal, so
+ * that they do not keep their segments from being deleted.
+ *
+ * On open the journal and the dead letters are replayed and the undelivered
+ * envelopes are rewritten to a fresh segment.
+ *
+ * @author James Moger
+ *
+ */
+public class Outbox implements Closeable {
+
+	/**
+	 * Notified after an envelope has been durably stored.
+	 */
+	public interface Listener {
+		void onStored(Envelope envelope);
+	}
+
+	/**
+	 * The location of a stored envelope.
+	 */
+	public static class Pointer {
+
+		final long id;
+
+		final int segment;
+
+		final long offset;
+
+		Pointer(long id, int segment, long offset) {
+			this.id = id;
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+
+	static final byte PAYLOAD = 'P';
+
+	static final byte ACK = 'A';
+
+	static final byte DEAD = 'D';
+
+	static final int HEADER_LENGTH = 1 + 8 + 4;
+
+	static final int CRC_LENGTH = 4;
+
+	static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+	static final Pattern SEGMENT_PATTERN = Pattern.compile("outbox-(\\d+)\\.log");
+
+	static final String DEAD_LETTERS = "dead-letters.log";
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final File folder;
+
+	final long segmentSize;
+
+	final int batchSize;
+
+	final Listener listener;
+
+	final BlockingQueue<Entry> queue;
+
+	final AtomicLong nextId;
+
+	// state below is owned by the writer thread once the outbox is open
+
+	private final TreeMap<Integer, Integer> pendingBySegment;
+
+	private final Map<Long, Integer> segmentOf;
+
+	private int activeSegment;
+
+	private FileOutputStream out;
+
+	private DataOutputStream data;
+
+	private long position;
+
+	private FileOutputStream deadOut;
+
+	private DataOutputStream deadData;
+
+	private Thread writer;
+
+	private volatile boolean running;
+
+	public Outbox(File folder, long segmentSize, int batchSize, Listener listener) {
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		this.batchSize = Math.max(1, batchSize);
+		this.listener = listener;
+		this.queue = new LinkedBlockingQueue<Entry>();
+		this.nextId = new AtomicLong(1);
+		this.pendingBySegment = new TreeMap<Integer, Integer>();
+		this.segmentOf = new HashMap<Long, Integer>();
+	}
+
+	/**
+	 * Opens the outbox, replaying any existing segments.
+	 *
+	 * @return the envelopes which were stored but never acknowledged
+	 * @throws IOException
+	 */
+	public synchronized List<Envelope> open() throws IOException {
+		if (!folder.exists() && !folder.mkdirs()) {
+			throw new IOException("Failed to create outbox folder " + folder);
+		}
+
+		// replay the existing segments, oldest first
+		File [] segments = listSegments();
+		LinkedHashMap<Long, Envelope> pending = new LinkedHashMap<Long, Envelope>();
+		long maxId = 0;
+		int maxSegment = 0;
+		for (File segment : segments) {
+			maxSegment = Math.max(maxSegment, segmentNumber(segment));
+			maxId = Math.max(maxId, replay(segment, pending));
+		}
+		File deadLetters = new File(folder, DEAD_LETTERS);
+		if (deadLetters.exists()) {
+			// after the segments, which acknowledge the dead letters
+			maxId = Math.max(maxId, replay(deadLetters, pending));
+		}
+		nextId.set(maxId + 1);
+
+		// rewrite the undelivered envelopes to a fresh segment
+		activeSegment = maxSegment;
+		roll();
+		List<Envelope> recovered = new ArrayList<Envelope>(pending.size());
+		for (Envelope envelope : pending.values()) {
+			envelope.pointer = write(envelope);
+			recovered.add(envelope);
+		}
+		sync();
+
+		for (File segment : segments) {
+			if (!segment.delete()) {
+				log.warn("Failed to delete outbox segment {}", segment);
+			}
+		}
+		if (deadLetters.exists() && !deadLetters.delete()) {
+			log.warn("Failed to delete outbox dead letters {}", deadLetters);
+		}
+
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "FlowDock outbox");
+		writer.setDaemon(true);
+		writer.start();
+
+		if (!recovered.isEmpty()) {
+			log.info("Recovered {} undelivered FlowDock messages from {}", recovered.size(), folder);
+		}
+		return recovered;
+	}
+
+	/**
+	 * Queues an envelope to be stored.  The listener is notified once the
+	 * envelope has been written and synced.
+	 *
+	 * @param envelope
+	 * @return the envelope with its outbox id
+	 */
+	public Envelope append(Envelope envelope) {
+		Envelope stored = envelope.withId(nextId.getAndIncrement());
+		queue.add(new Entry(PAYLOAD, stored.id, stored));
+		return stored;
+	}
+
+	/**
+	 * Acknowledges that an envelope no longer needs to be delivered.
+	 *
+	 * @param id
+	 */
+	public void ack(long id) {
+		if (id > 0) {
+			queue.add(new Entry(ACK, id, null));
+		}
+	}
+
+	/**
+	 * Moves an envelope to the dead letters.  The envelope is acknowledged
+	 * and will be sent again on the next open.
+	 *
+	 * @param envelope
+	 */
+	public void deadLetter(Envelope envelope) {
+		if (envelope.id > 0) {
+			queue.add(new Entry(DEAD, envelope.id, envelope));
+		}
+	}
+
+	/**
+	 * Reads a stored envelope.
+	 *
+	 * @param pointer
+	 * @return the envelope
+	 * @throws IOException
+	 */
+	public Envelope read(Pointer pointer) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(segmentFile(pointer.segment), "r")) {
+			raf.seek(pointer.offset);
+			byte [] header = new byte[HEADER_LENGTH];
+			raf.readFully(header);
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+			byte type = buffer.get();
+			long id = buffer.getLong();
+			int length = buffer.getInt();
+			if (type != PAYLOAD || id != pointer.id || length < 0 || length > MAX_RECORD_LENGTH) {
+				throw new IOException("Invalid outbox record at " + pointer.segment + ":" + pointer.offset);
+			}
+			byte [] bytes = new byte[length];
+			raf.readFully(bytes);
+			if (raf.readInt() != crc(header, bytes)) {
+				throw new IOException("Corrupt outbox record at " + pointer.segment + ":" + pointer.offset);
+			}
+			Envelope envelope = Envelope.fromBytes(id, bytes);
+			envelope.pointer = pointer;
+			return envelope;
+		}
+	}
+
+	/**
+	 * Stops the writer after it has stored all queued entries.
+	 */
+	@Override
+	public synchronized void close() {
+		running = false;
+		if (writer != null) {
+			try {
+				writer.join(TimeUnit.SECONDS.toMillis(10));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			writer = null;
+		}
+		try {
+			if (data != null) {
+				data.close();
+			}
+			if (deadData != null) {
+				deadData.close();
+			}
+		} catch (IOException e) {
+			log.error("Failed to close FlowDock outbox", e);
+		}
+		data = null;
+		out = null;
+		deadData = null;
+		deadOut = null;
+	}
+
+	private void writeLoop() {
+		List<Entry> batch = new ArrayList<Entry>(batchSize);
+		while (running || !queue.isEmpty()) {
+			Entry first;
+			try {
+				first = queue.poll(250, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (first == null) {
+				continue;
+			}
+			batch.clear();
+			batch.add(first);
+			queue.drainTo(batch, batchSize - 1);
+			writeBatch(batch);
+		}
+	}
+
+	private void writeBatch(List<Entry> batch) {
+		List<Envelope> stored = new ArrayList<Envelope>(batch.size());
+		try {
+			for (Entry entry : batch) {
+				if (PAYLOAD == entry.type) {
+					entry.envelope.pointer = write(entry.envelope);
+					stored.add(entry.envelope);
+				} else {
+					Integer segment = segmentOf.remove(entry.id);
+					if (segment != null) {
+						if (DEAD == entry.type) {
+							writeDeadLetter(entry.envelope);
+						}
+						writeRecord(ACK, entry.id, new byte[0]);
+						Integer count = pendingBySegment.get(segment);
+						if (count != null) {
+							pendingBySegment.put(segment, count - 1);
+						}
+					}
+				}
+			}
+			sync();
+			if (position >= segmentSize) {
+				roll();
+			}
+			compact();
+		} catch (IOException e) {
+			log.error("Failed to write FlowDock outbox", e);
+			// deliver what we have, even if it could not be made durable
+			for (Entry entry : batch) {
+				if (PAYLOAD == entry.type && !stored.contains(entry.envelope)) {
+					stored.add(entry.envelope);
+				}
+			}
+		}
+
+		for (Envelope envelope : stored) {
+			try {
+				listener.onStored(envelope);
+			} catch (Exception e) {
+				log.error("Failed to dispatch " + envelope, e);
+			}
+		}
+	}
+
+	private Pointer write(Envelope envelope) throws IOException {
+		Pointer pointer = writeRecord(PAYLOAD, envelope.id, envelope.toBytes());
+		segmentOf.put(envelope.id, activeSegment);
+		pendingBySegment.put(activeSegment, pendingBySegment.get(activeSegment) + 1);
+		return pointer;
+	}
+
+	private Pointer writeRecord(byte type, long id, byte [] bytes) throws IOException {
+		byte [] header = ByteBuffer.allocate(HEADER_LENGTH).put(type).putLong(id).putInt(bytes.length).array();
+		Pointer pointer = new Pointer(id, activeSegment, position);
+		data.write(header);
+		data.write(bytes);
+		data.writeInt(crc(header, bytes));
+		position += HEADER_LENGTH + bytes.length + CRC_LENGTH;
+		return pointer;
+	}
+
+	/**
+	 * Appends an envelope to the dead letters and syncs them, before the
+	 * envelope is acknowledged in the journal.
+	 */
+	private void writeDeadLetter(Envelope envelope) throws IOException {
+		if (deadData == null) {
+			deadOut = new FileOutputStream(new File(folder, DEAD_LETTERS), true);
+			deadData = new DataOutputStream(new BufferedOutputStream(deadOut));
+		}
+		byte [] bytes = envelope.toBytes();
+		byte [] header = ByteBuffer.allocate(HEADER_LENGTH).put(PAYLOAD).putLong(envelope.id).putInt(bytes.length).array();
+		deadData.write(header);
+		deadData.write(bytes);
+		deadData.writeInt(crc(header, bytes));
+		deadData.flush();
+		deadOut.getChannel().force(false);
+	}
+
+	private void sync() throws IOException {
+		data.flush();
+		out.getChannel().force(false);
+	}
+
+	private void roll() throws IOException {
+		if (data != null) {
+			data.close();
+		}
+		activeSegment++;
+		File file = segmentFile(activeSegment);
+		out = new FileOutputStream(file, true);
+		data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+		position = file.length();
+		pendingBySegment.put(activeSegment, 0);
+	}
+
+	/**
+	 * Deletes the oldest segments while they have no pending envelopes.
+	 */
+	private void compact() {
+		Iterator<Map.Entry<Integer, Integer>> itr = pendingBySegment.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<Integer, Integer> entry = itr.next();
+			if (entry.getKey() == activeSegment || entry.getValue() > 0) {
+				break;
+			}
+			File file = segmentFile(entry.getKey());
+			if (file.delete() || !file.exists()) {
+				itr.remove();
+			} else {
+				log.warn("Failed to delete outbox segment {}", file);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Replays a segment into the pending map.
+	 *
+	 * @return the highest id in the segment
+	 */
+	private long replay(File segment, Map<Long, Envelope> pending) throws IOException {
+		long maxId = 0;
+		try (DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+			byte [] header = new byte[HEADER_LENGTH];
+			while (true) {
+				try {
+					is.readFully(header);
+				} catch (EOFException e) {
+					break;
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(header);
+				byte type = buffer.get();
+				long id = buffer.getLong();
+				int length = buffer.getInt();
+				if ((type != PAYLOAD && type != ACK) || length < 0 || length > MAX_RECORD_LENGTH) {
+					log.warn("Invalid record in outbox segment {}, ignoring the remainder", segment);
+					break;
+				}
+				byte [] bytes = new byte[length];
+				int crc;
+				try {
+					is.readFully(bytes);
+					crc = is.readInt();
+				} catch (EOFException e) {
+					log.warn("Truncated record in outbox segment {}, ignoring the remainder", segment);
+					break;
+				}
+				if (crc != crc(header, bytes)) {
+					log.warn("Corrupt record in outbox segment {}, ignoring the remainder", segment);
+					break;
+				}
+
+				maxId = Math.max(maxId, id);
+				if (PAYLOAD == type) {
+					pending.put(id, Envelope.fromBytes(id, bytes));
+				} else {
+					pending.remove(id);
+				}
+			}
+		}
+		return maxId;
+	}
+
+	private File [] listSegments() {
+		File [] files = folder.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && SEGMENT_PATTERN.matcher(file.getName()).matches();
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				return Integer.compare(segmentNumber(o1), segmentNumber(o2));
+			}
+		});
+		return files;
+	}
+
+	private File segmentFile(int segment) {
+		return new File(folder, String.format("outbox-%08d.log", segment));
+	}
+
+	private static int segmentNumber(File file) {
+		Matcher m = SEGMENT_PATTERN.matcher(file.getName());
+		return m.matches() ? Integer.parseInt(m.group(1)) : 0;
+	}
+
+	private static int crc(byte [] header, byte [] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(header);
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	private static class Entry {
+
+		final byte type;
+
+		final long id;
+
+		final Envelope envelope;
+
+		Entry(byte type, long id, Envelope envelope) {
+			this.type = type;
+			this.id = id;
+			this.envelope = envelope;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+/**
+ * Determines what happens to a message when a dispatch lane is full.
+ *
+ * @author James Moger
+ *
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Wait up to the overflow timeout for space in the lane, then drop the
+	 * new message.  Messages stored in the outbox are spilled instead, so
+	 * that the outbox never waits for a lane.
+	 */
+	block,
+
+	/**
+	 * Drop the oldest queued message to make room for the new message.
+	 */
+	dropOldest,
+
+	/**
+	 * Leave the new message in the outbox and queue it again when there is
+	 * room.  Behaves like {@link #block} if the outbox is disabled; a message
+	 * which has to wait is queued only after all spilled messages.
+	 */
+	spill;
+
+	public static OverflowPolicy fromString(String value) {
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().equalsIgnoreCase(value)) {
+				return policy;
+			}
+		}
+		return block;
+	}
+}
@@ -80,6 +80,15 @@ public abstract class Payload implements Serializable {
 		}
 	}
 
+	/**
+	 * Writes the tags of this payload.
+	 *
+	 * @param out
+	 */
+	protected void writeTags(JsonOutput out) {
+		out.field("tags", tags);
+	}
+
 	public abstract String getEndPoint(String token);
 
 	public abstract boolean postForm();
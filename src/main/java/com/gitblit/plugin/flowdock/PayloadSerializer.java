@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.Date;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Serializes payloads to UTF-8 JSON.
+ *
+ * The built-in payloads are written by hand-written streaming writers into a
+ * reusable buffer.  Any other payload class, such as one returned by a custom
+ * ticket payload generator, is serialized by a shared Gson instance.  Both
+ * produce the same JSON.
+ *
+ * @author James Moger
+ *
+ */
+public final class PayloadSerializer {
+
+	private static final Gson GSON = new GsonBuilder().registerTypeAdapter(Date.class, new GmtDateTypeAdapter()).create();
+
+	private PayloadSerializer() {
+	}
+
+	/**
+	 * Serializes the payload.
+	 *
+	 * @param payload
+	 * @return the UTF-8 encoded JSON
+	 */
+	public static byte [] serialize(Payload payload) {
+		Class<?> type = payload.getClass();
+		if (GitPayload.class == type) {
+			JsonOutput out = JsonOutput.get();
+			((GitPayload) payload).writeJson(out);
+			return out.toByteArray();
+		} else if (MessagePayload.class == type) {
+			JsonOutput out = JsonOutput.get();
+			((MessagePayload) payload).writeJson(out);
+			return out.toByteArray();
+		} else if (JiraPayload.class == type) {
+			JsonOutput out = JsonOutput.get();
+			((JiraPayload) payload).writeJson(out);
+			return out.toByteArray();
+		}
+		return GSON.toJson(payload).getBytes(Envelope.UTF8);
+	}
+}
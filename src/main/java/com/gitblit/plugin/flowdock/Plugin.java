@@ -46,6 +46,98 @@ public class Plugin extends GitblitPlugin {
 
 	public static final String SETTING_TICKET_PAYLOAD_GENERATOR = "flowdock.ticketPayloadGenerator";
 
+	public static final String SETTING_MAX_CONNECTIONS = "flowdock.maxConnections";
+
+	public static final String SETTING_MAX_CONNECTIONS_PER_ROUTE = "flowdock.maxConnectionsPerRoute";
+
+	public static final String SETTING_CONNECT_TIMEOUT = "flowdock.connectTimeout";
+
+	public static final String SETTING_SOCKET_TIMEOUT = "flowdock.socketTimeout";
+
+	public static final String SETTING_KEEP_ALIVE = "flowdock.keepAlive";
+
+	public static final String SETTING_IDLE_CONNECTION_TIMEOUT = "flowdock.idleConnectionTimeout";
+
+	public static final String SETTING_DISPATCH_THREADS = "flowdock.dispatchThreads";
+
+	public static final String SETTING_DISPATCH_LANES = "flowdock.dispatchLanes";
+
+	public static final String SETTING_DISPATCH_QUEUE_SIZE = "flowdock.dispatchQueueSize";
+
+	public static final String SETTING_OVERFLOW_POLICY = "flowdock.overflowPolicy";
+
+	public static final String SETTING_OVERFLOW_TIMEOUT = "flowdock.overflowTimeout";
+
+	public static final String SETTING_ENRICH_THREADS = "flowdock.enrichThreads";
+
+	public static final String SETTING_ENRICH_QUEUE_SIZE = "flowdock.enrichQueueSize";
+
+	public static final String SETTING_DIFF_PARALLELISM = "flowdock.diffParallelism";
+
+	public static final String SETTING_COMMIT_INDEX_SIZE = "flowdock.commitIndexSize";
+
+	public static final String SETTING_BUGTRAQ_CACHE_SIZE = "flowdock.bugtraqCacheSize";
+
+	public static final String SETTING_MARKDOWN_CACHE_SIZE = "flowdock.markdownCacheSize";
+
+	public static final String SETTING_USER_CACHE_SIZE = "flowdock.userCacheSize";
+
+	public static final String SETTING_USER_CACHE_TTL = "flowdock.userCacheTtl";
+
+	public static final String SETTING_TICKET_DEBOUNCE = "flowdock.ticketDebounce";
+
+	public static final String SETTING_DEDUP_WINDOW = "flowdock.dedupWindow";
+
+	public static final String SETTING_DEDUP_SIZE = "flowdock.dedupSize";
+
+	public static final String SETTING_DEDUP_SHARED = "flowdock.dedupShared";
+
+	public static final String SETTING_DEDUP_FILE = "flowdock.dedupFile";
+
+	public static final String SETTING_OUTBOX = "flowdock.outbox";
+
+	public static final String SETTING_OUTBOX_FOLDER = "flowdock.outboxFolder";
+
+	public static final String SETTING_OUTBOX_SEGMENT_SIZE = "flowdock.outboxSegmentSize";
+
+	public static final String SETTING_OUTBOX_BATCH_SIZE = "flowdock.outboxBatchSize";
+
+	public static final String SETTING_RETRY_ATTEMPTS = "flowdock.retryAttempts";
+
+	public static final String SETTING_RETRY_DELAY = "flowdock.retryDelay";
+
+	public static final String SETTING_RETRY_MAX_DELAY = "flowdock.retryMaxDelay";
+
+	public static final String SETTING_RATE_LIMIT = "flowdock.rateLimit";
+
+	public static final String SETTING_RATE_BURST = "flowdock.rateBurst";
+
+	public static final String SETTING_CIRCUIT_FAILURE_RATE = "flowdock.circuitFailureRate";
+
+	public static final String SETTING_CIRCUIT_MINIMUM_CALLS = "flowdock.circuitMinimumCalls";
+
+	public static final String SETTING_CIRCUIT_WINDOW = "flowdock.circuitWindow";
+
+	public static final String SETTING_CIRCUIT_OPEN_TIME = "flowdock.circuitOpenTime";
+
+	public static final String SETTING_INCLUDE_REFS = "flowdock.includeRefs";
+
+	public static final String SETTING_EXCLUDE_REFS = "flowdock.excludeRefs";
+
+	public static final String SETTING_INCLUDE_PATHS = "flowdock.includePaths";
+
+	public static final String SETTING_IGNORE_USERS = "flowdock.ignoreUsers";
+
+	public static final String SETTING_IGNORE_TEAMS = "flowdock.ignoreTeams";
+
+	public static final String SETTING_IGNORE_EMAILS = "flowdock.ignoreEmails";
+
+	public static final String SETTING_SKIP_MARKER = "flowdock.skipMarker";
+
+	public static final String SETTING_AGGREGATE_THRESHOLD = "flowdock.aggregateThreshold";
+
+	public static final String SETTING_AGGREGATE_MAX_REFS = "flowdock.aggregateMaxRefs";
+
 	public Plugin(PluginWrapper wrapper) {
 		super(wrapper);
 
@@ -55,6 +147,7 @@ public class Plugin extends GitblitPlugin {
 
 	@Override
 	public void start() {
+		FlowDock.instance().start();
 		log.debug("{} STARTED.", getWrapper().getPluginId());
 	}
 
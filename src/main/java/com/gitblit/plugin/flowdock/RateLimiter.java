@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-flow token bucket rate limiter.
+ *
+ * Each flow has its own bucket which refills at a fixed rate up to the burst
+ * size.  A caller which finds the bucket empty still reserves the next token
+ * and is told how long to wait for it, so deferred messages of one flow are
+ * spread out instead of competing for the same token.
+ *
+ * @author James Moger
+ *
+ */
+public class RateLimiter {
+
+	static final String DEFAULT_FLOW = "";
+
+	final double permitsPerNano;
+
+	final double burst;
+
+	final ConcurrentMap<String, Bucket> buckets;
+
+	/**
+	 * @param permitsPerMinute the sustained rate for each flow
+	 * @param burst the number of messages which may be sent at once
+	 */
+	public RateLimiter(int permitsPerMinute, int burst) {
+		this.permitsPerNano = permitsPerMinute / (double) TimeUnit.MINUTES.toNanos(1);
+		this.burst = Math.max(1, burst);
+		this.buckets = new ConcurrentHashMap<String, Bucket>();
+	}
+
+	/**
+	 * Reserves a token for the flow.
+	 *
+	 * @param flow
+	 * @return the number of milliseconds to wait before the reserved token
+	 *         may be used, 0 if it may be used immediately
+	 */
+	public long reserve(String flow) {
+		String key = flow == null ? DEFAULT_FLOW : flow;
+		Bucket bucket = buckets.get(key);
+		if (bucket == null) {
+			Bucket created = new Bucket(burst);
+			bucket = buckets.putIfAbsent(key, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket.reserve();
+	}
+
+	private class Bucket {
+
+		private double tokens;
+
+		private long refilled;
+
+		Bucket(double tokens) {
+			this.tokens = tokens;
+			this.refilled = System.nanoTime();
+		}
+
+		synchronized long reserve() {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - refilled) * permitsPerNano);
+			refilled = now;
+
+			tokens -= 1;
+			if (tokens >= 0) {
+				return 0;
+			}
+			// time until the bucket is back to zero
+			long waitNanos = (long) Math.ceil(-tokens / permitsPerNano);
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+		}
+	}
+}
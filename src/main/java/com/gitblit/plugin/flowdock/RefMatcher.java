@@ -0,0 +1,205 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches ref names against a compiled set of patterns.
+ *
+ * A pattern is either a glob, where <em>*</em> matches any characters and
+ * <em>?</em> matches one character, or a regular expression prefixed with
+ * <em>regex:</em>.  Exact names and globs whose only wildcard is a trailing
+ * <em>*</em>, which are by far the most common, are stored in a prefix trie
+ * and matched in a single pass over the ref name.  All other patterns fall
+ * back to regular expressions.
+ *
+ * @author James Moger
+ *
+ */
+public final class RefMatcher {
+
+	static final String REGEX_PREFIX = "regex:";
+
+	static final RefMatcher EMPTY = new RefMatcher(new Node(), new ArrayList<Pattern>(), true);
+
+	static final Logger log = LoggerFactory.getLogger(RefMatcher.class);
+
+	final Node root;
+
+	final List<Pattern> patterns;
+
+	final boolean empty;
+
+	private RefMatcher(Node root, List<Pattern> patterns, boolean empty) {
+		this.root = root;
+		this.patterns = patterns;
+		this.empty = empty;
+	}
+
+	/**
+	 * Compiles the patterns.  Invalid regular expressions are logged and
+	 * ignored.
+	 *
+	 * @param values
+	 * @return a matcher
+	 */
+	public static RefMatcher compile(Collection<String> values) {
+		if (values == null || values.isEmpty()) {
+			return EMPTY;
+		}
+		Node root = new Node();
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		boolean empty = true;
+		for (String value : values) {
+			String pattern = value.trim();
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			if (pattern.startsWith(REGEX_PREFIX)) {
+				try {
+					patterns.add(Pattern.compile(pattern.substring(REGEX_PREFIX.length())));
+					empty = false;
+				} catch (PatternSyntaxException e) {
+					log.error("Ignoring invalid FlowDock ref pattern " + pattern, e);
+				}
+				continue;
+			}
+
+			String literal = pattern;
+			boolean prefix = false;
+			if (literal.endsWith("*")) {
+				literal = literal.substring(0, literal.length() - 1);
+				prefix = true;
+			}
+			if (literal.indexOf('*') < 0 && literal.indexOf('?') < 0) {
+				root.insert(literal, prefix);
+			} else {
+				patterns.add(Pattern.compile(globToRegex(pattern)));
+			}
+			empty = false;
+		}
+		return new RefMatcher(root, patterns, empty);
+	}
+
+	/**
+	 * Returns true if there are no patterns.
+	 *
+	 * @return true if there are no patterns
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * Returns true if the ref matches any of the patterns.
+	 *
+	 * @param ref
+	 * @return true if the ref matches
+	 */
+	public boolean matches(String ref) {
+		if (empty) {
+			return false;
+		}
+		Node node = root;
+		for (int i = 0; node != null; i++) {
+			if (node.prefix) {
+				return true;
+			}
+			if (i == ref.length()) {
+				if (node.exact) {
+					return true;
+				}
+				break;
+			}
+			node = node.children == null ? null : node.children.get(ref.charAt(i));
+		}
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(ref).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static String globToRegex(String glob) {
+		StringBuilder sb = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : glob.toCharArray()) {
+			if (c == '*' || c == '?') {
+				if (literal.length() > 0) {
+					sb.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				sb.append(c == '*' ? ".*" : ".");
+			} else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			sb.append(Pattern.quote(literal.toString()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A trie node.  Ref names are short and share long prefixes, so a map per
+	 * node is compact enough.
+	 */
+	private static class Node {
+
+		Map<Character, Node> children;
+
+		/**
+		 * A pattern ends here.
+		 */
+		boolean exact;
+
+		/**
+		 * A pattern ending here matches any continuation.
+		 */
+		boolean prefix;
+
+		void insert(String literal, boolean isPrefix) {
+			Node node = this;
+			for (int i = 0; i < literal.length(); i++) {
+				if (node.children == null) {
+					node.children = new HashMap<Character, Node>();
+				}
+				Node child = node.children.get(literal.charAt(i));
+				if (child == null) {
+					child = new Node();
+					node.children.put(literal.charAt(i), child);
+				}
+				node = child;
+			}
+			if (isPrefix) {
+				node.prefix = true;
+			} else {
+				node.exact = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Classifies delivery failures and calculates the delay before a retry.
+ *
+ * Network failures and 408, 429 and 5xx responses are retryable, all other
+ * error responses are permanent.  The delay is an exponential backoff, capped
+ * at the maximum delay, with jitter.  A Retry-After header is honored up to
+ * the maximum delay.
+ *
+ * @author James Moger
+ *
+ */
+public class RetryPolicy {
+
+	final int maxAttempts;
+
+	final long baseDelay;
+
+	final long maxDelay;
+
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = Math.max(1, baseDelay);
+		this.maxDelay = Math.max(this.baseDelay, maxDelay);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Returns true if the failure may succeed if it is tried again.
+	 *
+	 * @param e
+	 * @return true if the failure is retryable
+	 */
+	public boolean isRetryable(IOException e) {
+		if (e instanceof FlowDockException) {
+			int status = ((FlowDockException) e).getStatus();
+			return status == 408 || status == 429 || status >= 500;
+		}
+		// protocol errors are caused by the request, everything else by the network
+		return !(e instanceof ClientProtocolException);
+	}
+
+	/**
+	 * Returns the delay in milliseconds before the next attempt.
+	 *
+	 * @param attempt the number of attempts which have failed
+	 * @param e the last failure
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(int attempt, IOException e) {
+		if (e instanceof FlowDockException) {
+			long retryAfter = parseRetryAfter(((FlowDockException) e).getRetryAfter());
+			if (retryAfter >= 0) {
+				// never let the server park a message beyond the maximum delay
+				return Math.min(maxDelay, retryAfter);
+			}
+		}
+
+		long delay = maxDelay;
+		if (attempt < 31) {
+			delay = Math.min(maxDelay, baseDelay << Math.max(0, attempt - 1));
+		}
+		// equal jitter: half fixed, half random
+		long half = delay / 2;
+		return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+	}
+
+	/**
+	 * Parses a Retry-After value which is either a number of seconds or an
+	 * HTTP date.
+	 *
+	 * @param value
+	 * @return the delay in milliseconds or -1 if the value is not valid
+	 */
+	static long parseRetryAfter(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return -1;
+		}
+		String trimmed = value.trim();
+		try {
+			long seconds = Long.parseLong(trimmed);
+			return seconds > Long.MAX_VALUE / 1000L ? Long.MAX_VALUE : Math.max(0, seconds * 1000L);
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(trimmed);
+			if (date == null) {
+				return -1;
+			}
+			return Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds envelopes until they are due to be sent again.
+ *
+ * Waiting envelopes sit in a delay queue; a single thread hands each one
+ * back to the listener when its delay expires, so no dispatcher thread is
+ * held while an envelope waits.
+ *
+ * @author James Moger
+ *
+ */
+public class RetryScheduler {
+
+	/**
+	 * Notified when a scheduled envelope is due.
+	 */
+	public interface Listener {
+		void onDue(Envelope envelope);
+	}
+
+	final Logger log = LoggerFactory.getLogger(getClass());
+
+	final DelayQueue<Scheduled> queue;
+
+	final Listener listener;
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	public RetryScheduler(Listener listener) {
+		this.listener = listener;
+		this.queue = new DelayQueue<Scheduled>();
+	}
+
+	public synchronized void start() {
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					Scheduled scheduled;
+					try {
+						scheduled = queue.take();
+					} catch (InterruptedException e) {
+						break;
+					}
+					try {
+						listener.onDue(scheduled.envelope);
+					} catch (Exception e) {
+						log.error("Failed to dispatch " + scheduled.envelope, e);
+					}
+				}
+			}
+		}, "FlowDock retry scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the scheduler.  Envelopes which are still waiting are discarded;
+	 * if the outbox is enabled they are replayed on the next start.
+	 */
+	public synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+		queue.clear();
+	}
+
+	/**
+	 * Schedules an envelope to be handed back after a delay.
+	 *
+	 * @param envelope
+	 * @param delay in milliseconds
+	 */
+	public void schedule(Envelope envelope, long delay) {
+		queue.put(new Scheduled(envelope, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+	}
+
+	/**
+	 * Returns the number of waiting envelopes.
+	 *
+	 * @return the number of waiting envelopes
+	 */
+	public int size() {
+		return queue.size();
+	}
+
+	private static class Scheduled implements Delayed {
+
+		final Envelope envelope;
+
+		final long due;
+
+		Scheduled(Envelope envelope, long due) {
+			this.envelope = envelope;
+			this.due = due;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			if (o instanceof Scheduled) {
+				long diff = due - ((Scheduled) o).due;
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.models.TicketModel;
+import com.gitblit.models.TicketModel.Attachment;
+import com.gitblit.models.TicketModel.Change;
+import com.gitblit.models.TicketModel.Field;
+
+/**
+ * Coalesces the updates of a ticket which arrive in quick succession.
+ *
+ * The first update of a ticket opens a window of a fixed interval.  Updates
+ * of the same ticket by the same author which arrive within the window are
+ * merged into a single change: their field changes are combined, later
+ * values replacing earlier ones, and their comment, patchset and review are
+ * kept.  An update which can not be merged, because it has a different
+ * author or a second comment, patchset or review, settles the pending change
+ * and opens a new window.  When the window closes the merged change is handed
+ * to the listener of the last update, on the debouncer thread.
+ *
+ * @author James Moger
+ *
+ */
+public class TicketDebouncer {
+
+	/**
+	 * Receives the merged change of a ticket.
+	 */
+	public interface Listener {
+
+		/**
+		 * @param ticket the ticket as of the last merged update
+		 * @param change the merged change
+		 * @param updates the merged updates, oldest first
+		 */
+		void onSettled(TicketModel ticket, Change change, List<Change> updates);
+	}
+
+	static final Logger log = LoggerFactory.getLogger(TicketDebouncer.class);
+
+	final long interval;
+
+	final ScheduledExecutorService scheduler;
+
+	final Map<String, Pending> pending;
+
+	/**
+	 * @param interval milliseconds an update waits for further updates of the
+	 *        same ticket
+	 */
+	public TicketDebouncer(long interval) {
+		this.interval = interval;
+		this.pending = new HashMap<String, Pending>();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "FlowDock ticket debouncer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues a ticket update.
+	 *
+	 * @param ticket
+	 * @param change
+	 * @param listener
+	 */
+	public void offer(TicketModel ticket, Change change, Listener listener) {
+		final String key = ticket.repository + "#" + ticket.number;
+		Pending settled = null;
+		Pending rejected = null;
+		synchronized (pending) {
+			Pending p = pending.get(key);
+			if (p != null && p.merge(ticket, change, listener)) {
+				return;
+			}
+			if (p != null) {
+				p.future.cancel(false);
+				settled = p;
+			}
+
+			final Pending next = new Pending(ticket, change, listener);
+			p = next;
+			try {
+				p.future = scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						settle(key, next);
+					}
+				}, interval, TimeUnit.MILLISECONDS);
+				pending.put(key, p);
+			} catch (RejectedExecutionException e) {
+				// stopped, do not hold the update back
+				pending.remove(key);
+				rejected = p;
+			}
+		}
+		emit(settled);
+		emit(rejected);
+	}
+
+	/**
+	 * Settles all pending changes and stops the debouncer.
+	 */
+	public void close() {
+		List<Pending> all;
+		synchronized (pending) {
+			all = new ArrayList<Pending>(pending.values());
+			pending.clear();
+		}
+		scheduler.shutdownNow();
+		for (Pending p : all) {
+			emit(p);
+		}
+	}
+
+	private void settle(String key, Pending p) {
+		synchronized (pending) {
+			if (pending.get(key) != p) {
+				// already settled by a later update
+				return;
+			}
+			pending.remove(key);
+		}
+		emit(p);
+	}
+
+	private void emit(Pending p) {
+		if (p == null) {
+			return;
+		}
+		try {
+			p.listener.onSettled(p.ticket, p.toChange(), p.updates);
+		} catch (Exception e) {
+			log.error("Failed to post FlowDock ticket update for " + p.ticket.repository + " #" + p.ticket.number, e);
+		}
+	}
+
+	/**
+	 * The merged updates of one ticket.
+	 */
+	private static class Pending {
+
+		final Change first;
+
+		final List<Change> updates;
+
+		TicketModel ticket;
+
+		Change last;
+
+		Listener listener;
+
+		Map<Field, String> fields;
+
+		Set<Attachment> attachments;
+
+		Change comment;
+
+		Change patchset;
+
+		Change review;
+
+		ScheduledFuture<?> future;
+
+		Pending(TicketModel ticket, Change change, Listener listener) {
+			this.first = change;
+			this.updates = new ArrayList<Change>();
+			this.ticket = ticket;
+			this.listener = listener;
+			add(change);
+		}
+
+		boolean merge(TicketModel ticket, Change change, Listener listener) {
+			if (change.author == null ? first.author != null : !change.author.equals(first.author)) {
+				return false;
+			}
+			if ((change.hasComment() && comment != null)
+					|| (change.hasPatchset() && patchset != null)
+					|| (change.hasReview() && review != null)) {
+				return false;
+			}
+			this.ticket = ticket;
+			this.listener = listener;
+			add(change);
+			return true;
+		}
+
+		private void add(Change change) {
+			last = change;
+			updates.add(change);
+			if (change.hasFieldChanges()) {
+				if (fields == null) {
+					fields = new LinkedHashMap<Field, String>();
+				}
+				fields.putAll(change.fields);
+			}
+			if (change.attachments != null && !change.attachments.isEmpty()) {
+				if (attachments == null) {
+					attachments = new LinkedHashSet<Attachment>();
+				}
+				attachments.addAll(change.attachments);
+			}
+			if (change.hasComment()) {
+				comment = change;
+			}
+			if (change.hasPatchset()) {
+				patchset = change;
+			}
+			if (change.hasReview()) {
+				review = change;
+			}
+		}
+
+		/**
+		 * Returns the merged change.  A single update is returned as is, the
+		 * updates themselves are never modified.
+		 */
+		Change toChange() {
+			if (updates.size() == 1) {
+				return first;
+			}
+			Change change = new Change(last.author, last.date);
+			change.fields = fields;
+			if (comment != null) {
+				change.comment = comment.comment;
+			}
+			if (patchset != null) {
+				change.patchset = patchset.patchset;
+			}
+			if (review != null) {
+				change.review = review.review;
+			}
+			change.attachments = attachments;
+			return change;
+		}
+	}
+}
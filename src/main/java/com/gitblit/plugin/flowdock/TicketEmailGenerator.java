@@ -14,12 +14,12 @@
  * limitations under the License.
  */
 package com.gitblit.plugin.flowdock;
+import ro.fortsoft.pf4j.Extension;
+
 import com.gitblit.manager.IGitblit;
-import com.gitblit.manager.IUserManager;
 import com.gitblit.models.Mailing;
 import com.gitblit.models.TicketModel;
 import com.gitblit.models.TicketModel.Change;
-import com.gitblit.models.UserModel;
 import com.gitblit.servlet.GitblitContext;
 import com.gitblit.tickets.TicketNotifier;
 
@@ -29,6 +29,7 @@ import com.gitblit.tickets.TicketNotifier;
  * @author James Moger
  *
  */
+@Extension
 public class TicketEmailGenerator extends TicketPayloadGenerator {
 
 	public TicketEmailGenerator() {
@@ -53,11 +54,10 @@ public class TicketEmailGenerator extends TicketPayloadGenerator {
 
     	String ticketUrl = getUrl(ticket);
 
-    	IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-    	UserModel authorModel = userManager.getUserModel(change.author);
+    	UserCache.Identity author = FlowDock.instance().getUserCache().get(change.author);
 
     	MessagePayload payload = new MessagePayload()
-		.from(authorModel)
+		.from(author)
 		.subject(mailing.subject)
 		.content(mailing.content)
 		.project(getProject(ticket))
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.gitblit.manager.IPluginManager;
+import com.gitblit.servlet.GitblitContext;
+
+/**
+ * Resolves and caches the configured ticket payload generator.
+ *
+ * Generators are extensions of {@link TicketPayloadGenerator}, so other
+ * plugins can contribute them.  A generator is looked up among the
+ * extensions by class name, or loaded by name if it is not an extension,
+ * and is then shared by all ticket events until the setting changes.  If the
+ * generator can not be loaded the failure is reported once and the email
+ * generator is used instead until the setting changes.
+ *
+ * Generators must be thread-safe.
+ *
+ * @author James Moger
+ *
+ */
+public class TicketGenerators {
+
+	static final Logger log = LoggerFactory.getLogger(TicketGenerators.class);
+
+	/**
+	 * The class name and generator pair which is currently cached.
+	 */
+	private static class Entry {
+
+		final String className;
+
+		final TicketPayloadGenerator generator;
+
+		Entry(String className, TicketPayloadGenerator generator) {
+			this.className = className;
+			this.generator = generator;
+		}
+	}
+
+	private volatile Entry current;
+
+	/**
+	 * Returns the generator of the class.
+	 *
+	 * @param className
+	 * @return a generator
+	 */
+	public TicketPayloadGenerator get(String className) {
+		Entry entry = current;
+		if (entry != null && entry.className.equals(className)) {
+			return entry.generator;
+		}
+		synchronized (this) {
+			entry = current;
+			if (entry == null || !entry.className.equals(className)) {
+				entry = new Entry(className, load(className));
+				current = entry;
+			}
+			return entry.generator;
+		}
+	}
+
+	/**
+	 * Forgets the cached generator.
+	 */
+	public synchronized void clear() {
+		current = null;
+	}
+
+	private TicketPayloadGenerator load(String className) {
+		List<TicketPayloadGenerator> extensions = getExtensions();
+		TicketPayloadGenerator fallback = null;
+		for (TicketPayloadGenerator extension : extensions) {
+			if (extension.getClass().getName().equals(className)) {
+				log.debug("Using FlowDock ticket payload generator extension {}", className);
+				return extension;
+			}
+			if (extension instanceof TicketEmailGenerator) {
+				fallback = extension;
+			}
+		}
+
+		try {
+			TicketPayloadGenerator generator = (TicketPayloadGenerator) Class.forName(className).newInstance();
+			log.debug("Using FlowDock ticket payload generator {}", className);
+			return generator;
+		} catch (Throwable t) {
+			log.error("Failed to load FlowDock ticket payload generator " + className
+					+ ", using the email generator until the setting is changed", t);
+		}
+		return fallback == null ? new TicketEmailGenerator() : fallback;
+	}
+
+	private List<TicketPayloadGenerator> getExtensions() {
+		IPluginManager pluginManager = GitblitContext.getManager(IPluginManager.class);
+		if (pluginManager == null) {
+			return Collections.emptyList();
+		}
+		List<TicketPayloadGenerator> extensions = pluginManager.getExtensions(TicketPayloadGenerator.class);
+		if (extensions == null) {
+			return Collections.emptyList();
+		}
+		return extensions;
+	}
+}
@@ -14,6 +14,8 @@
  * limitations under the License.
  */
 package com.gitblit.plugin.flowdock;
+import ro.fortsoft.pf4j.Extension;
+
 import com.gitblit.models.TicketModel;
 import com.gitblit.models.TicketModel.Change;
 
@@ -23,6 +25,7 @@ import com.gitblit.models.TicketModel.Change;
  * @author James Moger
  *
  */
+@Extension
 public class TicketJiraGenerator extends TicketPayloadGenerator {
 
 	public TicketJiraGenerator() {
@@ -31,23 +31,18 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+
+import ro.fortsoft.pf4j.Extension;
 
 import com.gitblit.Constants;
-import com.gitblit.IStoredSettings;
 import com.gitblit.Keys;
 import com.gitblit.manager.IRepositoryManager;
-import com.gitblit.manager.IRuntimeManager;
-import com.gitblit.manager.IUserManager;
 import com.gitblit.models.TicketModel;
 import com.gitblit.models.TicketModel.Change;
 import com.gitblit.models.TicketModel.Patchset;
 import com.gitblit.models.TicketModel.Review;
-import com.gitblit.models.UserModel;
 import com.gitblit.servlet.GitblitContext;
 import com.gitblit.utils.ActivityUtils;
-import com.gitblit.utils.BugtraqProcessor;
 import com.gitblit.utils.MarkdownUtils;
 import com.gitblit.utils.StringUtils;
 
@@ -57,23 +52,15 @@ import com.gitblit.utils.StringUtils;
  * @author James Moger
  *
  */
+@Extension
 public class TicketMessageGenerator extends TicketPayloadGenerator {
 
-	final String name = getClass().getSimpleName();
-
-	final Logger log = LoggerFactory.getLogger(getClass());
-
-	final IStoredSettings settings;
-
 	private final String addPattern = "<span style=\"color:darkgreen;\">+{0}</span>";
 
 	private final String delPattern = "<span style=\"color:darkred;\">-{0}</span>";
 
 	public TicketMessageGenerator() {
 		super();
-
-		IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-    	settings = runtimeManager.getSettings();
 	}
 
     @Override
@@ -86,18 +73,18 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 				TicketModel.Field.status, TicketModel.Field.mentions));
 
     	Change change = ticket.changes.get(0);
-    	IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-    	UserModel authorModel = userManager.getUserModel(change.author);
+    	UserCache.Lookup users = FlowDock.instance().getUserCache().lookup();
+    	UserCache.Identity author = users.get(change.author);
     	String subject = getSubject(ticket, String.format("new %s ticket", ticket.type));
 
     	StringBuilder sb = new StringBuilder();
-    	sb.append(String.format("<b>%s</b> has created <b>%s</b> <a href=\"%s\">ticket-%s</a>", authorModel.getDisplayName(),
+    	sb.append(String.format("<b>%s</b> has created <b>%s</b> <a href=\"%s\">ticket-%s</a>", author.getDisplayName(),
     			StringUtils.stripDotGit(ticket.repository), ticketUrl, ticket.number));
 
-    	fields(sb, ticket, ticket.changes.get(0), fieldExclusions);
+    	fields(sb, ticket, ticket.changes.get(0), fieldExclusions, users);
 
     	MessagePayload payload = new MessagePayload()
-    		.from(authorModel)
+    		.from(author)
     		.subject(subject)
     		.content(sb.toString())
     		.project(getProject(ticket))
@@ -116,9 +103,9 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 				TicketModel.Field.mentions, TicketModel.Field.title, TicketModel.Field.body,
 				TicketModel.Field.mergeSha));
 
-		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-		UserModel authorModel = userManager.getUserModel(change.author);
-		String author = "<b>" + authorModel.getDisplayName() + "</b>";
+		UserCache.Lookup users = FlowDock.instance().getUserCache().lookup();
+		UserCache.Identity authorIdentity = users.get(change.author);
+		String author = "<b>" + authorIdentity.getDisplayName() + "</b>";
 		String url = String.format("<a href=\"%s\">ticket-%s</a>", getUrl(ticket), ticket.number);
 		String repo = "<b>" + StringUtils.stripDotGit(ticket.repository) + "</b>";
 		String subject = null;
@@ -142,11 +129,7 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 			List<Change> reviews = ticket.getReviews(ticket.getPatchset(review.patchset, review.rev));
 			sb.append("<table><thead<tr><th>Date</th><th>Reviewer</th><th>Score</th><th>Description</th></tr></thead><tbody>\n");
 			for (Change c : reviews) {
-				String name = c.author;
-				UserModel u = userManager.getUserModel(change.author);
-				if (u != null) {
-					name = u.getDisplayName();
-				}
+				String name = getDisplayName(users, c.author);
 				String score;
 				switch (change.review.score) {
 				case approved:
@@ -204,7 +187,7 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 			sb.append(leadIn);
 
 			// show the fields above the commit list
-			fields(sb, ticket, change, fieldExclusions);
+			fields(sb, ticket, change, fieldExclusions, users);
 
 			// abbreviated commit list
 			List<RevCommit> commits = getCommits(ticket.repository, base, tip);
@@ -266,7 +249,7 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 			 */
 			subject = getSubject(ticket, String.format("status changed to %s", ticket.status));
 			msg = String.format("%s has changed the status of %s %s", author, repo, url);
-		} else if (change.hasComment() && settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true)) {
+		} else if (change.hasComment() && FlowDock.instance().getConfig().isPostTicketComments()) {
 			/*
 			 * Comment
 			 */
@@ -284,13 +267,13 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 
 		// fields on patchset changes are output above this point
 		if (!change.hasPatchset()) {
-			fields(sb, ticket, change, fieldExclusions);
+			fields(sb, ticket, change, fieldExclusions, users);
 		}
 
     	String ticketUrl = getUrl(ticket);
 
     	MessagePayload payload = new MessagePayload()
-    		.from(authorModel)
+    		.from(authorIdentity)
     		.subject(subject)
     		.content(sb.toString())
     		.project(getProject(ticket))
@@ -305,7 +288,8 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 		return ticket.title;
 	}
 
-    protected void fields(StringBuilder sb, TicketModel ticket, Change change, Set<TicketModel.Field> fieldExclusions) {
+    protected void fields(StringBuilder sb, TicketModel ticket, Change change, Set<TicketModel.Field> fieldExclusions,
+    		UserCache.Lookup users) {
     	Map<TicketModel.Field, String> filtered = new HashMap<TicketModel.Field, String>();
     	if (change.hasFieldChanges()) {
     		for (Map.Entry<TicketModel.Field, String> fc : change.fields.entrySet()) {
@@ -316,7 +300,7 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
     		}
     	}
 
-    	if (change.hasComment() && settings.getBoolean(Plugin.SETTING_POST_TICKET_COMMENTS, true)) {
+    	if (change.hasComment() && FlowDock.instance().getConfig().isPostTicketComments()) {
     		// transform Markdown comment
     		sb.append("<br/>\n");
     		String comment = renderMarkdown(change.comment.text, ticket.repository);
@@ -349,7 +333,7 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 						value = renderBugtraq(value, ticket.repository);
     				} else if (TicketModel.Field.responsible == field) {
     					// lookup display name of the user
-    					value = getDisplayName(value);
+    					value = getDisplayName(users, value);
     				}
 				}
 				sb.append(String.format("<tr><td><b>%1$s:<b/></td><td>%2$s</td></tr>\n", field.name(), value));
@@ -363,6 +347,19 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
     		return markdown;
     	}
 
+    	// the html depends on the settings and on the bugtraq configuration
+    	FlowDock flowdock = FlowDock.instance();
+    	MarkdownCache cache = flowdock.getMarkdownCache();
+    	String key = null;
+    	if (cache != null) {
+    		String version = flowdock.getConfig().getVersion() + "." + flowdock.getBugtraqCache().getVersion(repository);
+    		key = MarkdownCache.key(repository, markdown, version);
+    		String html = cache.get(key);
+    		if (html != null) {
+    			return html;
+    		}
+    	}
+
 		// transform the body to html
     	String bugtraq = renderBugtraq(markdown, repository);
 		String html = MarkdownUtils.transformGFM(settings, bugtraq, repository);
@@ -370,6 +367,9 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
 		// strip paragraph tags
 		html = html.replace("<p>", "");
 		html = html.replace("</p>", "<br/><br/>");
+		if (cache != null) {
+			cache.put(key, html);
+		}
 		return html;
     }
 
@@ -378,31 +378,15 @@ public class TicketMessageGenerator extends TicketPayloadGenerator {
     		return value;
     	}
 
-    	IRepositoryManager repositoryManager = GitblitContext.getManager(IRepositoryManager.class);
-		Repository db = repositoryManager.getRepository(repository);
-		try {
-			BugtraqProcessor bugtraq = new BugtraqProcessor(settings);
-			value = bugtraq.processText(db, repository, value);
-		} finally {
-			db.close();
-		}
-		return value;
+    	return FlowDock.instance().getBugtraqCache().process(repository, value);
     }
 
-    protected String getDisplayName(String username) {
+    protected String getDisplayName(UserCache.Lookup users, String username) {
     	if (StringUtils.isEmpty(username)) {
     		return username;
     	}
 
-		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
-		UserModel user = userManager.getUserModel(username);
-		if (user != null) {
-			String displayName = user.getDisplayName();
-			if (!StringUtils.isEmpty(displayName) && !username.equals(displayName)) {
-				return displayName;
-			}
-		}
-		return username;
+		return users.get(username).getDisplayName();
     }
 
 	private List<RevCommit> getCommits(String repositoryName, String baseId, String tipId) {
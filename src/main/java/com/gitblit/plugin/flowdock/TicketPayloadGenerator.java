@@ -14,16 +14,16 @@
  * limitations under the License.
  */
 package com.gitblit.plugin.flowdock;
-import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ro.fortsoft.pf4j.ExtensionPoint;
+
 import com.gitblit.Constants;
 import com.gitblit.IStoredSettings;
-import com.gitblit.Keys;
 import com.gitblit.manager.IGitblit;
 import com.gitblit.manager.IRuntimeManager;
 import com.gitblit.models.TicketModel;
@@ -35,10 +35,14 @@ import com.gitblit.utils.StringUtils;
 /**
  * Parent class of ticket payload generators.
  *
+ * Generators are extensions, so other plugins may contribute them.  One
+ * instance of the configured generator is shared by all ticket events, so
+ * generators must be thread-safe.
+ *
  * @author James Moger
  *
  */
-public abstract class TicketPayloadGenerator {
+public abstract class TicketPayloadGenerator implements ExtensionPoint {
 
 	final String name = getClass().getSimpleName();
 
@@ -74,7 +78,7 @@ public abstract class TicketPayloadGenerator {
     	List<String> tags = new ArrayList<String>();
     	tags.add(String.valueOf(ticket.number));
     	tags.add(ticket.type.name().toLowerCase());
-    	tags.addAll(settings.getStrings(Plugin.SETTING_FIXED_TICKET_TAGS));
+    	tags.addAll(FlowDock.instance().getConfig().getFixedTicketTags());
 
     	List<String> labels = ticket.getLabels();
     	if (!ArrayUtils.isEmpty(labels)) {
@@ -120,27 +124,6 @@ public abstract class TicketPayloadGenerator {
      * @return a link
      */
     protected String getUrl(String repo, String oldId, String newId) {
-    	IRuntimeManager runtimeManager = GitblitContext.getManager(IRuntimeManager.class);
-		String canonicalUrl = runtimeManager.getSettings().getString(Keys.web.canonicalUrl, "https://localhost:8443");
-
-		if (oldId == null && newId != null) {
-			// create
-			final String hrefPattern = "{0}/commit?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, newId);
-		} else if (oldId != null && newId == null) {
-			// log
-			final String hrefPattern = "{0}/log?r={1}&h={2}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId);
-		} else if (oldId != null && newId != null) {
-			// update/compare
-			final String hrefPattern = "{0}/compare?r={1}&h={2}..{3}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo, oldId, newId);
-		} else if (oldId == null && newId == null) {
-			// summary page
-			final String hrefPattern = "{0}/summary?r={1}";
-			return MessageFormat.format(hrefPattern, canonicalUrl, repo);
-		}
-
-		return null;
+    	return FlowDock.instance().getConfig().getLinks().getUrl(repo, oldId, newId);
     }
 }
\ No newline at end of file
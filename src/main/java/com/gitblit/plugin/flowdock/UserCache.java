@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 gitblit.com.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.gitblit.plugin.flowdock;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.gitblit.manager.IUserManager;
+import com.gitblit.models.UserModel;
+import com.gitblit.servlet.GitblitContext;
+import com.gitblit.utils.StringUtils;
+
+/**
+ * A cache of the display names and email addresses of users, shared by the
+ * ticket payload generators.
+ *
+ * Identities are remembered for a fixed time, so a changed display name or
+ * email address is picked up after at most that time, and the least
+ * recently used identities are evicted when the cache is full.  Unknown
+ * users are remembered too, so that a missing account is not looked up
+ * again for every event.
+ *
+ * A generator resolves the users of one message with a {@link Lookup}, which
+ * resolves each user at most once no matter how often the user appears.
+ *
+ * @author James Moger
+ *
+ */
+public class UserCache {
+
+	/**
+	 * The display name and email address of a user.
+	 */
+	public static class Identity {
+
+		public final String username;
+
+		public final String displayName;
+
+		public final String emailAddress;
+
+		Identity(String username, UserModel user) {
+			this.username = username;
+			this.displayName = user == null ? username : user.getDisplayName();
+			this.emailAddress = user == null ? null : user.emailAddress;
+		}
+
+		/**
+		 * Returns the display name or the username if the user has none.
+		 *
+		 * @return the display name
+		 */
+		public String getDisplayName() {
+			return StringUtils.isEmpty(displayName) ? username : displayName;
+		}
+	}
+
+	/**
+	 * Resolves the users of a single message.  A lookup is not thread-safe
+	 * and is discarded with the message.
+	 */
+	public class Lookup {
+
+		final Map<String, Identity> resolved = new HashMap<String, Identity>();
+
+		/**
+		 * Returns the identity of a user.
+		 *
+		 * @param username
+		 * @return the identity or null if the username is empty
+		 */
+		public Identity get(String username) {
+			if (StringUtils.isEmpty(username)) {
+				return null;
+			}
+			Identity identity = resolved.get(username);
+			if (identity == null) {
+				identity = UserCache.this.get(username);
+				resolved.put(username, identity);
+			}
+			return identity;
+		}
+	}
+
+	final long ttl;
+
+	final int maxSize;
+
+	final LinkedHashMap<String, Entry> entries;
+
+	private long hits;
+
+	private long misses;
+
+	/**
+	 * @param ttl milliseconds an identity is remembered
+	 * @param maxSize the maximum number of remembered identities, 0 disables
+	 *        the cache
+	 */
+	public UserCache(long ttl, int maxSize) {
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Starts resolving the users of a message.
+	 *
+	 * @return a new lookup
+	 */
+	public Lookup lookup() {
+		return new Lookup();
+	}
+
+	/**
+	 * Returns the identity of a user.
+	 *
+	 * @param username
+	 * @return the identity
+	 */
+	public Identity get(String username) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Entry entry = entries.get(username);
+			if (entry != null && entry.expires > now) {
+				hits++;
+				return entry.identity;
+			}
+			misses++;
+		}
+
+		// look up outside of the lock, the user manager may be remote
+		IUserManager userManager = GitblitContext.getManager(IUserManager.class);
+		Identity identity = new Identity(username, userManager.getUserModel(username));
+		if (maxSize > 0) {
+			synchronized (this) {
+				entries.put(username, new Entry(identity, now + ttl));
+				while (entries.size() > maxSize) {
+					entries.remove(entries.keySet().iterator().next());
+				}
+			}
+		}
+		return identity;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Returns the cache statistics, for administrators.
+	 *
+	 * @return the statistics
+	 */
+	public synchronized String getStatistics() {
+		long lookups = hits + misses;
+		return String.format("user cache: %d of %d entries, %d hits, %d misses (%d%% hit rate)",
+				entries.size(), maxSize, hits, misses, lookups == 0 ? 0 : hits * 100 / lookups);
+	}
+
+	private static class Entry {
+
+		final Identity identity;
+
+		final long expires;
+
+		Entry(Identity identity, long expires) {
+			this.identity = identity;
+			this.expires = expires;
+		}
+	}
+}